@@ -0,0 +1,117 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextColor;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Sprites and scenes shared by the benchmarks. Everything is drawn on a
+ * Lanterna virtual terminal, so the benchmarks run without a TTY.
+ */
+final class BenchmarkScene
+{
+    static final int COLUMNS = 200;
+    static final int ROWS = 60;
+
+    // the small fish from asciiquarium, flicking its tail, with the random colors already filled in
+    static final String[] FISH_IMAGE = {
+            "\n" +
+                    "    \\\n" +
+                    "\\ /--\\\n" +
+                    ">=  (o>\n" +
+                    "/ \\__/\n" +
+                    "    /\n",
+            "\n" +
+                    "    \\\n" +
+                    "| /--\\\n" +
+                    ">=  (o>\n" +
+                    "| \\__/\n" +
+                    "    /\n"
+    };
+
+    static final String FISH_MASK = "\n" +
+            "    c\n" +
+            "g yyyy\n" +
+            "gg  WrB\n" +
+            "g yyyy\n" +
+            "    m\n";
+
+    static final String CASTLE_IMAGE = "\n" +
+            "               T~~\n" +
+            "               |\n" +
+            "              /^\\\n" +
+            "             /   \\\n" +
+            " _   _   _  /     \\  _   _   _\n" +
+            "[ ]_[ ]_[ ]/ _   _ \\[ ]_[ ]_[ ]\n" +
+            "|_=__-_ =_|_[ ]_[ ]_|_=-___-__|\n" +
+            " | _- =  | =_ = _    |= _=   |\n" +
+            " |= -[]  |- = _ =    |_-=_[] |\n" +
+            " | =_    |= - ___    | =_ =  |\n" +
+            " |=  []- |-  /| |\\   |=_ =[] |\n" +
+            " |- =_   | =| | | |  |- = -  |\n" +
+            " |_______|__|_|_|_|__|_______|\n";
+
+    static final String CASTLE_MASK = "\n" +
+            "                RR\n" +
+            "\n" +
+            "              yyy\n" +
+            "             y   y\n" +
+            "            y     y\n" +
+            "           y       y\n" +
+            "\n" +
+            "\n" +
+            "\n" +
+            "              yyy\n" +
+            "             yy yy\n" +
+            "            y y y y\n" +
+            "            yyyyyyy\n";
+
+    private BenchmarkScene()
+    {
+    }
+
+    /**
+     * Returns an animation drawing on a COLUMNS x ROWS virtual terminal.
+     *
+     * @return
+     * @throws IOException
+     */
+    static Animation headless() throws IOException
+    {
+        return Animation.headless(COLUMNS, ROWS);
+    }
+
+    /**
+     * Returns a fish somewhere on the screen, swimming left or right and
+     * wrapping around the edges.
+     *
+     * @param rand
+     * @param physical
+     * @return
+     */
+    static Entity fish(Random rand, boolean physical)
+    {
+        boolean right = rand.nextBoolean();
+        float speed = (rand.nextFloat() * 2 + 0.25f) * (right ? 1 : -1);
+        return Entity.newBuilder()
+                .withShape(FISH_IMAGE)
+                .withColorMask(FISH_MASK)
+                .withPosition(rand.nextInt(COLUMNS), rand.nextInt(ROWS), 3 + rand.nextInt(18))
+                .withCallback_args(speed, 0, 0, 0.25f)
+                .withWrap(true)
+                .withPhysical(physical)
+                .withType("fish")
+                .build();
+    }
+
+    static Entity castle()
+    {
+        return Entity.newBuilder()
+                .withShape(CASTLE_IMAGE)
+                .withColorMask(CASTLE_MASK)
+                .withPosition(COLUMNS - 32, ROWS - 13, 22)
+                .withDefault_color(TextColor.ANSI.WHITE)
+                .build();
+    }
+}
@@ -0,0 +1,60 @@
+package ranbato.term.Animation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collision detection over a screen of physical fish. The fish don't move,
+ * so every invocation tests the same set of pairs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark
+{
+    @Param({"10", "100", "1000", "10000"})
+    int physical;
+
+    private Animation animation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        animation = BenchmarkScene.headless();
+        Random rand = new Random(42);
+        for (int i = 0; i < physical; i++)
+        {
+            animation.add_entity(BenchmarkScene.fish(rand, true));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        animation.end();
+    }
+
+    @Benchmark
+    public void findCollisions()
+    {
+        animation.find_collisions();
+    }
+}
@@ -0,0 +1,43 @@
+package ranbato.term.Animation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building entities, which turns the shape and color mask strings into
+ * frames (build_shape, build_mask) and fills in the draw cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityBuildBenchmark
+{
+    @Benchmark
+    public Entity buildFish()
+    {
+        return Entity.newBuilder()
+                .withShape(BenchmarkScene.FISH_IMAGE)
+                .withColorMask(BenchmarkScene.FISH_MASK)
+                .withPosition(10, 10, 5)
+                .withCallback_args(1, 0, 0, 0.25f)
+                .build();
+    }
+
+    @Benchmark
+    public Entity buildCastle()
+    {
+        return BenchmarkScene.castle();
+    }
+}
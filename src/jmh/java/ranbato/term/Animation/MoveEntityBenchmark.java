@@ -0,0 +1,67 @@
+package ranbato.term.Animation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default movement callback, per entity. Entities are wrapped back onto
+ * the screen after each move so they don't drift off over a long run.
+ * Run with -prof gc to check that moving doesn't allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveEntityBenchmark
+{
+    private static final int ENTITIES = 1000;
+
+    private Animation animation;
+    private final Entity[] entities = new Entity[ENTITIES];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        animation = BenchmarkScene.headless();
+        Random rand = new Random(42);
+        for (int i = 0; i < ENTITIES; i++)
+        {
+            entities[i] = BenchmarkScene.fish(rand, false);
+            animation.add_entity(entities[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        animation.end();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public void moveEntity()
+    {
+        for (Entity entity : entities)
+        {
+            entity.move_entity(animation);
+            entity.wrap_to(BenchmarkScene.COLUMNS, BenchmarkScene.ROWS);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ranbato.term.Animation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drawing a screen full of fish, in each of the rendering modes.
+ * <p>
+ * buildScreen moves the scene on by one tick before composing it, otherwise
+ * the incremental modes would have nothing to redraw. drawEntities only
+ * measures draw_entity, over every entity in the scene.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark
+{
+    @Param({"10", "100", "1000"})
+    int entities;
+
+    @Param({"full", "incremental", "cellBuffering"})
+    String mode;
+
+    private Animation animation;
+    private final List<Entity> scene = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        animation = BenchmarkScene.headless();
+        animation.setIncremental(!mode.equals("full"));
+        animation.setCellBuffering(mode.equals("cellBuffering"));
+
+        Random rand = new Random(42);
+        scene.add(BenchmarkScene.castle());
+        for (int i = 0; i < entities; i++)
+        {
+            scene.add(BenchmarkScene.fish(rand, false));
+        }
+        animation.add_entity(scene);
+        animation.build_screen();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        animation.end();
+    }
+
+    @Benchmark
+    public void buildScreen()
+    {
+        animation.update();
+        animation.build_screen();
+    }
+
+    @Benchmark
+    public void drawEntities()
+    {
+        for (int i = 0; i < scene.size(); i++)
+        {
+            animation.draw_entity(scene.get(i), null);
+        }
+    }
+}
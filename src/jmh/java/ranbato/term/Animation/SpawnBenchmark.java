@@ -0,0 +1,80 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextColor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short lived entities being spawned and dying, like the bubbles in
+ * asciiquarium: each invocation spawns a bubble that lives for 20 cycles and
+ * runs a cycle, so once warmed up one bubble dies for each one spawned.
+ * "built" makes a new entity for every bubble, "pooled" reuses dead ones with
+ * {@link Animation#spawn_entity(Entity.Builder)}. Run with -prof gc to see
+ * the allocation per bubble.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpawnBenchmark
+{
+    private static final String[] BUBBLE_IMAGE = {".", "o", "O", "O", "O"};
+
+    @Param({"built", "pooled"})
+    public String mode;
+
+    private Animation animation;
+    private Entity.Builder bubble;
+    private int spawned = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        animation = BenchmarkScene.headless();
+        animation.setTrack_framerate(false);
+        bubble = Entity.newBuilder()
+                .withType("bubble")
+                .withShape(BUBBLE_IMAGE)
+                .withCallback_args(0, -1, 0, 0.1f)
+                .withDie_frame(20)
+                .withDefault_color(TextColor.ANSI.CYAN);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        animation.end();
+    }
+
+    @Benchmark
+    public void spawnBubble()
+    {
+        int i = spawned++;
+        bubble.withPosition(i % BenchmarkScene.COLUMNS, BenchmarkScene.ROWS - 1, 3);
+        if (mode.equals("pooled"))
+        {
+            animation.spawn_entity(bubble);
+        }
+        else
+        {
+            animation.add_entity(bubble.build());
+        }
+        animation.update();
+    }
+}
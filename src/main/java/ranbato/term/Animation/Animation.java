@@ -8,11 +8,19 @@ import com.googlecode.lanterna.screen.TerminalScreen;
 import com.googlecode.lanterna.screen.Screen;
 import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
+import com.googlecode.lanterna.terminal.virtual.DefaultVirtualTerminal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static java.util.Map.entry;
@@ -135,20 +143,76 @@ public class Animation
     }
 
     private TextColor background = TextColor.ANSI.BLACK;
-    private List<Entity> entities = new ArrayList<>();
+    // entities indexed by depth, iterated in draw order
+    private DepthBuckets entities = new DepthBuckets();
+    // entities by handle, see Entity.getHandle()
+    private final EntitySlots slots = new EntitySlots();
+    private Map<String, Entity> names = new HashMap<>();
+    private List<Entity> deleteQueue = new ArrayList<>();
+    // scratch list for the update phases
+    private Entity[] updateList = new Entity[64];
     private List<Entity> physicalEntities = new ArrayList<>();
-//    private List<Entity> collissions
+    // entities following another, and the order to move them in, leaders before followers
+    private List<Entity> followers = new ArrayList<>();
+    private Entity[] followOrder = new Entity[16];
+    private int followOrderSize = 0;
+    private boolean followOrderDirty = false;
+    private int followStamp = 0;
+    private CollisionGrid collisionGrid = new CollisionGrid(8, 4);
     private boolean color_enabled = false;
     private long last_frame_time = 0;
 
     //  framerate related settings
     private boolean track_framerate = true;
-    private int framerate = 0;
+    private double framerate = 0;
     private int frames_this_second = 0;
+    private final AnimationMetrics metrics = new AnimationMetrics(this);
+
+    // time as seen by the entities, and the number of cycles run
+    private Clock clock = Clock.systemUTC();
+    private long tick = 0;
+    private Consumer<Entity> spawnListener;
+    private BiConsumer<TerminalSize, TerminalSize> resizeListener;
+    // true from when the callbacks of a cycle start until the cycle ends
+    private boolean updating = false;
+
+    // die_time, die_frame and scheduled tasks, by nanoseconds of the clock and by tick
+    private final TimingWheel timeWheel = new TimingWheel();
+    private final TimingWheel frameWheel = new TimingWheel();
+    private final List<ScheduledTask> expiredTasks = new ArrayList<>();
+
+    // dead pooled entities waiting to be reused, by the builder they were made with
+    private final Map<Entity.Builder, ArrayDeque<Entity>> entityPool = new IdentityHashMap<>();
+    private int maxPooled = 256;
+    private int pooledCount = 0;
+
     Terminal win;
     Screen screen;
     private boolean fullscreen = false;
 
+    // incremental rendering, only repaint the regions that changed
+    private boolean incremental = false;
+    private boolean fullRedraw = true;
+    private boolean[] dirtyCells;
+    private int[] dirtyRects = new int[64];
+    private int dirtyRectCount = 0;
+    // x, y, width, height, wrap of entities removed since the last frame
+    private int[] removedRects = new int[40];
+    private int removedRectCount = 0;
+
+    // cell buffering, compose into our own buffer and only write out the differences
+    private boolean cellBuffering = false;
+    private CellBuffer backBuffer;
+    private CellBuffer frontBuffer;
+
+    // parallel callbacks, see setUpdatePool()
+    private ForkJoinPool updatePool;
+    private int parallelThreshold = 1024;
+    private int updateChunkSize = 256;
+    private CommandQueue[] commandQueues = new CommandQueue[0];
+    private final ThreadLocal<CommandQueue> currentQueue = new ThreadLocal<>();
+    private volatile boolean updatingInParallel = false;
+
     public TerminalSize getSize()
     {
         return size;
@@ -183,6 +247,20 @@ public class Animation
 
     }
 
+    /**
+     * Create an animation that draws on an in memory terminal instead of a
+     * real one, for running without a TTY. See {@link HeadlessRunner}.
+     *
+     * @param columns
+     * @param rows
+     * @return
+     * @throws IOException
+     */
+    public static Animation headless(int columns, int rows) throws IOException
+    {
+        return new Animation(new DefaultVirtualTerminal(new TerminalSize(columns, rows)));
+    }
+
 /*
 sub DESTROY {
 	my ($self) = @_;
@@ -194,11 +272,147 @@ sub DESTROY {
 
     public void add_entity(Entity entity)
     {
+        CommandQueue queue = deferred();
+        if(queue != null) {
+            queue.add(CommandQueue.ADD, entity);
+            return;
+        }
+        if(entity.animation == this) {
+            logger.warn("Entity '{}' is already part of the animation", entity.getName());
+            return;
+        }
         entities.add(entity);
+        slots.add(entity);
+        entity.animation = this;
+        entity.dying = false;
+        entity.drawn = false;
+        if(entity.getName() != null) {
+            names.put(entity.getName(), entity);
+        }
+        update_physical(entity);
+        update_follower(entity);
+        schedule_death(entity);
+        if(spawnListener != null) {
+            spawnListener.accept(entity);
+        }
     }
     public void add_entity(List<Entity> entityList)
     {
-        entities.addAll(entityList);
+        for (Entity entity : entityList)
+        {
+            add_entity(entity);
+        }
+    }
+
+    /**
+     * Returns an entity set up from a builder, reusing a dead entity made
+     * with the same builder if there is one, or building a new one. Either
+     * way the entity is pooled: when it dies through the deletion queue it
+     * goes back to the pool instead of being left for the garbage collector,
+     * keeping its sprite. Reusing a builder for short lived entities such as
+     * bubbles and splats, with only the position changed between spawns,
+     * means spawning them allocates nothing.
+     * <p>
+     * Don't keep a reference to a pooled entity after it dies, it will come
+     * back as a different one. The pool can't be used from callbacks running
+     * in parallel, see {@link #setUpdatePool(ForkJoinPool)}, they have to
+     * build their entities and add them.
+     *
+     * @param builder
+     * @return the entity, not yet added to the animation
+     */
+    public Entity obtain_entity(Entity.Builder builder) {
+        check_not_parallel("Pooled entities can't be obtained");
+        ArrayDeque<Entity> free = entityPool.get(builder);
+        Entity entity = free != null ? free.pollFirst() : null;
+        if(entity != null) {
+            pooledCount--;
+            entity.recycle(builder);
+        } else {
+            entity = builder.build();
+        }
+        entity.pool = builder;
+        return entity;
+    }
+
+    /**
+     * Obtain a pooled entity from a builder and add it to the animation.
+     *
+     * @param builder
+     * @return the entity
+     */
+    public Entity spawn_entity(Entity.Builder builder) {
+        Entity entity = obtain_entity(builder);
+        add_entity(entity);
+        return entity;
+    }
+
+    /**
+     * Returns the number of dead entities waiting in the pool.
+     *
+     * @return
+     */
+    public int pool_size() {
+        return pooledCount;
+    }
+
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * Set the most dead entities kept in the pool, across all builders. Entities
+     * that die when the pool is full are left for the garbage collector. Default: 256
+     *
+     * @param maxPooled
+     */
+    public void setMaxPooled(int maxPooled) {
+        if(maxPooled < 0) {
+            throw new IllegalArgumentException("maxPooled must not be negative: " + maxPooled);
+        }
+        this.maxPooled = maxPooled;
+        if(pooledCount > maxPooled) {
+            clear_pool();
+        }
+    }
+
+    /**
+     * Empty the pool of dead entities.
+     */
+    public void clear_pool() {
+        entityPool.clear();
+        pooledCount = 0;
+    }
+
+    private void return_to_pool(Entity entity) {
+        if(pooledCount >= maxPooled) {
+            entity.pool = null;
+            return;
+        }
+        entity.release();
+        ArrayDeque<Entity> free = entityPool.get(entity.pool);
+        if(free == null) {
+            free = new ArrayDeque<>();
+            entityPool.put(entity.pool, free);
+        }
+        free.addFirst(entity);
+        pooledCount++;
+    }
+
+    /**
+     * Called by an entity in this animation when its Z changes, to keep
+     * the depth index up to date.
+     *
+     * @param entity
+     */
+    void depth_changed(Entity entity)
+    {
+        CommandQueue queue = deferred();
+        if(queue != null) {
+            queue.add(CommandQueue.DEPTH_CHANGED, entity);
+            return;
+        }
+        entities.depthChanged(entity);
     }
 
 // // // // // // // // // // // // // // // // // // // // //  COLOR UTILITIES // // // // // // // // // // // // // // // // // // // // // // // 
@@ -287,493 +501,1200 @@ sub DESTROY {
 //////////////////////////////////////////////////// PHYSICS UTILITIES ////////////////////////////////////////////////////
 
 
-        // go through all of the physical entities looking for
-        // collisions.
-    private void find_collisions() {
-
-//    my @col_set = ();
-    List<Point3D> coord = new ArrayList<>(entities.size());
-        List<Point3D> size = new ArrayList<>(entities.size());
-    List<String> name = new ArrayList<>(entities.size());
-
-    for (Entity ent: entities){
-        if(ent.getPhysical()){
-            coord.add(ent.getPosition());
-            size.add(ent.getSize());
-            name.add(ent.getName());
+    /**
+     * Go through all of the physical entities looking for collisions. Each
+     * entity of a colliding pair is added to the collision list of the other.
+     */
+    void find_collisions() {
 
-        for (int i =0;i<coord.size();i++) {
-			// X
-            if( (coord.get(i).getX() <= coord.get(coord.size()-1).getX() && coord.get(coord.size()-1).getX() < coord.get(i).getX() + size.get(i).getX()) ||
-                    (coord.get(coord.size()-1).getX() <= coord.get(i).getX() && coord.get(i).getX() < coord.get(-1).getX() + size.get(size.size()-1).getX()) ) {
-				// Y
-                if( (coord.get(i).getY() <= coord.get(coord.size()-1).getY() && coord.get(coord.size()-1).getY() < coord.get(i).getY() + size.get(i).getY()) ||
-                        (coord.get(coord.size()-1).getY() <= coord.get(i).getY() && coord.get(i).getY() < coord.get(coord.size()-1).getY() + size.get(size.size()-1).getY()) ){
-                    // Z
-                    if ((coord.get(i).getZ() <= coord.get(coord.size()-1).getZ() && coord.get(coord.size()-1).getZ() <coord.get(i).getZ() + size.get(i).getZ()) ||
-                            (coord.get(coord.size()-1).getZ() <= coord.get(i).getZ() && coord.get(i).getZ() < coord.get(coord.size()-1).getZ() + size.get(size.size()-1).getZ()) ){
+        for (int i = 0; i < physicalEntities.size(); i++)
+        {
+            physicalEntities.get(i).getCollisions().clear();
+        }
 
-//                        push( @ { $ent -> {COLLISIONS }},$self -> {ENTITIES} { $name[$i]} );
-//                        push( @ {$self -> {ENTITIES} { $name[$i]} {COLLISIONS}},$ent );
+        collisionGrid.resize(size.getColumns(), size.getRows());
+        collisionGrid.findCollisions(physicalEntities);
+    }
 
-                    }
-                }
-                }
-            }
+    /**
+     * Update the list of physical entities when the physical state
+     * of an entity changes
+     *
+     * @param entity
+     */
+    void update_physical(Entity entity) {
+        CommandQueue queue = deferred();
+        if(queue != null) {
+            queue.add(CommandQueue.PHYSICAL_CHANGED, entity);
+            return;
+        }
+        if(entity.isPhysical() && entity.physicalIndex < 0) {
+            entity.physicalIndex = physicalEntities.size();
+            physicalEntities.add(entity);
+        } else if(!entity.isPhysical() && entity.physicalIndex >= 0) {
+            remove_physical(entity);
         }
     }
 
-    return;
-}
-//
-//# update the list of physical entities when the physical state
-//# of an entity changes
-//    sub _update_physical {
-//    my ($self, $entity) = @_;
-//    if($entity->{PHYSICAL} && !defined($self->{PHYSICALENTITIES}{$entity->{NAME}})) {
-//        $self->{PHYSICALCOUNT}++;
-//        $self->{PHYSICALENTITIES}{$entity->{NAME}} = $entity;
-//    } elsif(defined($self->{PHYSICALENTITIES}{$entity->{NAME}})) {
-//        $self->{PHYSICALCOUNT}--;
-//        delete $self->{PHYSICALENTITIES}{$entity->{NAME}};
-//    }
-//}
+    private void remove_physical(Entity entity) {
+        // swap the last entity into the hole so removal is O(1)
+        Entity last = physicalEntities.remove(physicalEntities.size() - 1);
+        if(last != entity) {
+            physicalEntities.set(entity.physicalIndex, last);
+            last.physicalIndex = entity.physicalIndex;
+        }
+        entity.physicalIndex = -1;
+    }
 //
 //########## END PHYSICS UTILITIES ###########
 //
-//        =item I<animate>
-//
-//    $anim->animate();
-//
-//    Perform a single animation cycle. Runs all of the callbacks,
-//    does collision detection, and updates the display.
-//
-//        =cut
-//    sub animate {
-//    my ($self) = @_;
-//    $self->_do_callbacks();
-//    if($self->{PHYSICALCOUNT} > 0) {
-//        $self->_find_collisions();
-//        $self->_collision_handlers();
-//    }
-//    $self->_remove_deleted_entities();
-//    $self->_move_followers();
-//    $self->_build_screen();
-//    $self->_display_screen();
-//    $self->_track_frame_rate() if $self->{TRACK_FRAMERATE};
-//}
-//
-//    sub _track_frame_rate {
-//    my ($self) = @_;
-//    my $time = time();
-//    if($time > $self->{LAST_FRAME_TIME}) {
-//        $self->{LAST_FRAME_TIME} = $time;
-//        $self->{FRAMERATE} = ($self->{FRAMERATE} + ($self->{FRAMES_THIS_SECOND} * 2) ) / 3;
-//        $self->{FRAMES_THIS_SECOND} = 1;
-//    } else {
-//        $self->{FRAMES_THIS_SECOND}++;
-//    }
-//}
-//
-//=item I<track_framerate>
-//
-//    $anim->track_framerate(1);
-//    $tracking_framerate = $anim->track_framerate();
-//
-//    Get or set the flag that indicates whether the module
-//    should keep track of the animation framerate. This is
-//    enabled by default.
-//
-//        =cut
-//    sub track_framerate {
-//    my ($self) = @_;
-//    if(@_) {
-//        $self->{TRACK_FRAMERATE} = shift;
-//    }
-//    return $self->{TRACK_FRAMERATE};
-//}
-//
-//=item I<framerate>
-//
-//    $frames_per_second = $anim->framerate();
-//
-//    Returns the approximate number of frames being displayed
-//    per second, as indicated by calls to the I<animate> method.
-//
-//=cut
-//    sub framerate {
-//    my ($self) = @_;
-//    return $self->{FRAMERATE};
-//}
-//
-//=item I<screen_size>
-//
-//my ($width, $height, $assumed_size) = $anim->screen_size();
-//
-//    Returns the width and height of the screen. The third value
-//    returned is a boolean indicating whether or not the default
-//    screen size was used, because the size could not be determined.
-//
-//        =cut
-//    sub screen_size {
-//    my $self = shift;
-//    return($self->{WIDTH}, $self->{HEIGHT}, $self->{ASSUMED_SIZE});
-//}
-//
-//=item I<update_term_size>
-//
-//    $anim->update_term_size();
-//
-//    Call this if you suspect the terminal size has changed (eg. if you
-//        get a SIGWINCH signal). Call I<remove_all_entities> after this if
-//    you want to recreate your animation from scratch.
-//
-//        =cut
-//    sub update_term_size {
-//    my $self = shift;
-//	# dunno how portable this is. i should probably be using
-//	# resizeterm.
-//            endwin();
-//    refresh();
-//    ($self->{WIDTH}, $self->{HEIGHT}, $self->{ASSUMED_SIZE}) = _get_term_size($self->{WIN});
-//}
-//
-//# try to figure out the terminal size, and set
-//# a reasonable size if we can't. the 'assumed_size'
-//        # variable will let programs know if we had to
-//# guess or not.
-//    sub _get_term_size {
-//    my $win = shift;
-//    my ($width, $height, $assumed_size);
-//	# find the width and height of the terminal
-//    $width = $win->getmaxx();
-//    $height = $win->getmaxy();
-//    if($width and $height) {
-//        $assumed_size = 0; # so we know if we can limit the max size or not
-//    } else {
-//        $assumed_size = 1;
-//        $width = 80;
-//        $height = 24;
-//    }
-//    return($width, $height, $assumed_size);
-//}
+/**
+ * Perform a single animation cycle. Runs all of the callbacks,
+ * does collision detection, and updates the display.
+ */
+    public void animate() {
+        update();
+        render();
+    }
 
     /**
-     * Write to the screen
+     * Advance the animation by one cycle without drawing it. Runs all of
+     * the callbacks, does collision detection, removes deleted entities
+     * and moves followers.
      */
-    public void build_screen() {
-
-        TerminalSize newSize = screen.doResizeIfNecessary();
-
-        if(newSize != null) {
-            size = newSize;
+    public void update() {
+        // a callback may turn tracking on or off, the whole cycle goes by how it started
+        boolean timed = track_framerate;
+        long start = timed ? System.nanoTime() : 0;
+
+        do_callbacks();
+        start = record_phase(timed, AnimationMetrics.Phase.CALLBACKS, start);
+
+        if(!physicalEntities.isEmpty()) {
+            find_collisions();
+            collision_handlers();
+            start = record_phase(timed, AnimationMetrics.Phase.COLLISIONS, start);
         }
 
+        remove_deleted_entities();
+        start = record_phase(timed, AnimationMetrics.Phase.DELETION, start);
 
-//	# clear the window before we start redrawing
-        screen.clear();
+        move_followers();
+        record_phase(timed, AnimationMetrics.Phase.FOLLOWERS, start);
 
-        // Reverse sort so they are drawn in correct order
-        entities.sort((e2,e1)->Integer.compare(e1.getZ() , e2.getZ()));
-        for (Entity ent:entities)
-        {
-            draw_entity(ent);
+        if(timed) {
+            metrics.tick();
         }
-        try
-        {
-            screen.refresh();
-        } catch (IOException e)
-        {
-            logger.error("Unable to refresh screen '{}",e);
+        updating = false;
+        tick++;
+    }
+
+    /**
+     * Record the time a phase took, if the cycle is timed.
+     *
+     * @param timed
+     * @param phase
+     * @param start when the phase started
+     * @return when the phase ended, the start of the next one
+     */
+    private long record_phase(boolean timed, AnimationMetrics.Phase phase, long start) {
+        if(!timed) {
+            return 0;
         }
+        long time = System.nanoTime();
+        metrics.record(phase, time - start);
+        return time;
     }
 
+    /**
+     * Returns the number of animation cycles run so far.
+     *
+     * @return
+     */
+    public long getTick() {
+        return tick;
+    }
 
-/**
- * draw an entity into the curses window in memory
- */
-    private void draw_entity(Entity entity) {
+    public Clock getClock() {
+        return clock;
+    }
 
-	// a few temporary variables to make the code below easier to read
-    TextCharacter[][] shape   = entity.getCurrentFrame();
-//    my $colors  = $self->{COLORS};
-//    my $fg      = $entity->{COLOR}[$entity->{CURR_FRAME}];
-//    my $attrs   = $entity->{ATTR}[$entity->{CURR_FRAME}];
-      int x = entity.getX();
-      int y = entity.getY();
-//      Point3D size = entity.getSize();
-      int w = size.getColumns();
-      int h = size.getRows();
-//    my $wrap    = $entity->{WRAP};
-//    my $trans   = $entity->{TRANSPARENT};
-//    my $win     = $self->{WIN};
-//    my $color_enabled = $self->{COLOR_ENABLED};
-//    my $attr;
+    /**
+     * Set the clock used to decide when entities with a die_time die. The
+     * default is the system clock, use a {@link TickClock} to make time
+     * advance with the animation cycles instead, so runs can be repeated
+     * exactly.
+     *
+     * @param clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        // the new clock may be nowhere near the old one
+        timeWheel.rebase(time_key(clock.instant()));
+    }
 
-    for (int i=0;i<shape.length;i++){
-        int y_pos = y+i;
+    /**
+     * Returns the current time according to the animation's clock. Use this
+     * rather than Instant.now() to work out a die_time.
+     *
+     * @return
+     */
+    public Instant now() {
+        return clock.instant();
+    }
 
-        for (int j=0;j<shape[i].length;j++) {
-            if(shape[i][j] != null && shape[i][j].getCharacter() != entity.getTransparent()) { // transparent char
-                int x_pos = x+j;
+    public Consumer<Entity> getSpawnListener() {
+        return spawnListener;
+    }
 
-                if(entity.isWrap()) {
-                    while(x_pos >= w) { x_pos -= w; }
-                    while(y_pos >= h) { y_pos -= h; }
-                } else if(x_pos >= w || y_pos >= h) {
-                    continue;
-                }
+    /**
+     * Set a routine called with every entity added to the animation, e.g. to
+     * log spawns.
+     *
+     * @param spawnListener
+     */
+    public void setSpawnListener(Consumer<Entity> spawnListener) {
+        this.spawnListener = spawnListener;
+    }
 
-                if(x_pos >= 0 && y_pos >= 0 ) {
-                    if(true /*$color_enabled*/) {
-                        screen.setCharacter(x_pos,y_pos,shape[i][j]);
-//                        if(defined($attrs->[$i][$j])) {
-//                            $attr = $colors->{$fg->[$i][$j]} | $attrs->[$i][$j];
-//                        } else {
-//                            $attr = $colors->{$fg->[$i][$j]};
-//                        }
-//
-//                        $win->attron( $attr );
-//                        $win->addstr( int($y_pos), int($x_pos), $shape->[$i][$j]);
-//                        $win->attroff( $attr );
-                    } else {
-//                        $win->addstr( int($y_pos), int($x_pos), $shape->[$i][$j]);
-                    }
-                }
-            }
+    public BiConsumer<TerminalSize, TerminalSize> getResizeListener() {
+        return resizeListener;
+    }
+
+    /**
+     * Set a routine called with the old and new size whenever the terminal
+     * size changes, before the next frame is drawn. It can lay the animation
+     * out again for the new size, e.g. move entities anchored to the bottom
+     * of the screen and stretch ones that span it, keeping everything that
+     * is alive instead of removing all the entities and starting over.
+     *
+     * @param resizeListener
+     */
+    public void setResizeListener(BiConsumer<TerminalSize, TerminalSize> resizeListener) {
+        this.resizeListener = resizeListener;
+    }
+
+//////////////////////////////////////////////////// SCHEDULING ////////////////////////////////////////////////////
+
+    /**
+     * Run a task once the animation's clock reaches a time, e.g. to spawn
+     * something later. The task runs at the start of the first cycle at or
+     * after that time, before any callbacks. Tasks can't be scheduled from
+     * callbacks running in parallel, see {@link #setUpdatePool(ForkJoinPool)}.
+     *
+     * @param time
+     * @param task
+     * @return the scheduled task, which can be passed to {@link #cancel(ScheduledTask)}
+     */
+    public ScheduledTask schedule(Instant time, Consumer<Animation> task) {
+        check_not_parallel("Tasks can't be scheduled");
+        ScheduledTask scheduled = new ScheduledTask(task);
+        timeWheel.schedule(scheduled, time_key(time));
+        return scheduled;
+    }
+
+    /**
+     * Run a task once a length of time has passed on the animation's clock.
+     *
+     * @param delay
+     * @param task
+     * @return
+     */
+    public ScheduledTask schedule(Duration delay, Consumer<Animation> task) {
+        return schedule(now().plus(delay), task);
+    }
+
+    /**
+     * Run a task after a number of animation cycles. A task scheduled
+     * between cycles with 0 frames runs at the start of the next cycle, and
+     * one scheduled during a cycle with 0 frames runs at the start of the
+     * cycle after.
+     *
+     * @param frames
+     * @param task
+     * @return
+     */
+    public ScheduledTask scheduleFrames(int frames, Consumer<Animation> task) {
+        if(frames < 0) {
+            throw new IllegalArgumentException("frames must not be negative: " + frames);
         }
+        check_not_parallel("Tasks can't be scheduled");
+        ScheduledTask scheduled = new ScheduledTask(task);
+        frameWheel.schedule(scheduled, next_tick() + frames);
+        return scheduled;
     }
-}
-//
-//=item I<add_entity>
-//
-//    $anim->add_entity( $entity1, $entity2, $entity3 );
-//
-//    Add one or more animation entities to the animation.
-//
-//=cut
-//    sub add_entity {
-//    my ($self, @entities) = @_;
-//    foreach my $entity (@entities) {
-//        $self->{ENTITYCOUNT}++;
-//        if($entity->{PHYSICAL}) {
-//            $self->{PHYSICALCOUNT}++;
-//            $self->{PHYSICALENTITIES}{$entity->{NAME}} = $entity;
-//        }
-//        $self->{ENTITIES}{$entity->{NAME}} = $entity;
-//        $entity->{ANIMATION} = $self;
-//    }
-//}
-//
-//=item I<del_entity>
-//
-//    $anim->del_entity( $entity_name );
-//    $anim->del_entity( $entity_ref );
-//
-//    Removes an entity from the animation. Accepts either an entity
-//    name or a reference to the entity itself.
-//
-//        =cut
-//    sub del_entity {
-//    my ($self, $entity) = @_;
-//    if(ref($entity)) {
-//        $entity = $entity->name();
-//    }
-//    if(defined($self->{ENTITIES}{$entity})) {
-//        push(@{$self->{DELETEQUEUE}}, $entity);
-//    } else {
-//        carp("Attempted to destroy nonexistant entity '$entity'");
-//    }
-//}
-//
-//# go through the list of entities that have been queued for
-//        # deletion using del_entity and remove them
-//    sub _remove_deleted_entities {
-//    my ($self) = @_;
-//    while(my $entity_name = shift @{$self->{DELETEQUEUE}}) {
-//        my $entity = $self->{ENTITIES}{$entity_name};
-//        if(defined($entity->{DEATH_CB})) {
-//            $entity->{DEATH_CB}->($entity, $self);
-//        }
-//        if($entity->{PHYSICAL}) {
-//            $self->{PHYSICALCOUNT}--;
-//            delete $self->{PHYSICALENTITIES}{$entity_name};
-//        }
-//        delete $self->{ENTITIES}{$entity_name};
-//        $self->{ENTITYCOUNT}--;
-//    }
-//}
-//
-//=item I<remove_all_entities>
-//
-//    $anim->remove_all_entities();
-//
-//    Removes every animation object. This is useful if you need to start the
-//    animation over (eg. after a screen resize)
-//
-//=cut
-//    sub remove_all_entities {
-//    my ($self) = @_;
-//    $self->{ENTITYCOUNT} = 0;
-//    $self->{PHYSICALCOUNT} = 0;
-//    $self->{PHYSICALENTITIES} = {};
-//    $self->{ENTITIES} = {};
-//}
+
+    /**
+     * Stop a scheduled task from running, if it hasn't already.
+     *
+     * @param task
+     */
+    public void cancel(ScheduledTask task) {
+        check_not_parallel("Tasks can't be scheduled");
+        if(task.wheel != null) {
+            task.wheel.cancel(task);
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to run, including the deaths of
+     * entities with a die_time or die_frame.
+     *
+     * @return
+     */
+    public int scheduled_count() {
+        return timeWheel.size() + frameWheel.size();
+    }
+
+    /**
+     * Called by an entity in this animation when its die_time or die_frame
+     * changes.
+     *
+     * @param entity
+     */
+    void timers_changed(Entity entity) {
+        CommandQueue queue = deferred();
+        if(queue != null) {
+            queue.add(CommandQueue.TIMERS_CHANGED, entity);
+            return;
+        }
+        if(entity.animation == this) {
+            schedule_death(entity);
+        }
+    }
+
+    /**
+     * Returns how many more cycles an entity counting down its die_frame
+     * will run before it dies.
+     *
+     * @param task the entity's die_frame task
+     * @return
+     */
+    int frames_left(ScheduledTask task) {
+        return (int) (task.deadline - next_tick());
+    }
+
+    private void schedule_death(Entity entity) {
+        if(entity.getDie_time() != null) {
+            if(entity.dieTimeTask == null) {
+                entity.dieTimeTask = new ScheduledTask(animation -> animation.del_entity(entity));
+            }
+            timeWheel.schedule(entity.dieTimeTask, time_key(entity.getDie_time()));
+        } else if(entity.dieTimeTask != null) {
+            timeWheel.cancel(entity.dieTimeTask);
+        }
+
+        // read the field, the getter would give the frames left on the old schedule
+        int die_frame = entity.die_frame;
+        if(die_frame >= 0) {
+            if(entity.dieFrameTask == null) {
+                entity.dieFrameTask = new ScheduledTask(animation -> {
+                    entity.die_frame = -1;
+                    animation.del_entity(entity);
+                });
+            }
+            frameWheel.schedule(entity.dieFrameTask, next_tick() + die_frame);
+        } else if(entity.dieFrameTask != null) {
+            frameWheel.cancel(entity.dieFrameTask);
+        }
+    }
+
+    private void cancel_death(Entity entity) {
+        if(entity.dieTimeTask != null) {
+            timeWheel.cancel(entity.dieTimeTask);
+        }
+        if(entity.dieFrameTask != null && entity.dieFrameTask.isPending()) {
+            // keep the count where it got to, in case the entity is added again
+            entity.die_frame = frames_left(entity.dieFrameTask);
+            frameWheel.cancel(entity.dieFrameTask);
+        }
+    }
+
+    /**
+     * Run everything in the timing wheels that has come due.
+     *
+     * @param now
+     */
+    private void run_scheduled(Instant now) {
+        timeWheel.advance(time_key(now), expiredTasks);
+        frameWheel.advance(tick, expiredTasks);
+        // tasks can schedule more tasks, which go in the wheels and not this list
+        for (int i = 0; i < expiredTasks.size(); i++)
+        {
+            expiredTasks.get(i).action.accept(this);
+        }
+        expiredTasks.clear();
+    }
+
+    /**
+     * Returns the first tick whose callbacks haven't started yet.
+     */
+    private long next_tick() {
+        return updating ? tick + 1 : tick;
+    }
+
+    private void check_not_parallel(String what) {
+        if(updatingInParallel) {
+            throw new IllegalStateException(what + " from callbacks running in parallel");
+        }
+    }
+
+    /**
+     * Returns a time as nanoseconds since the epoch, clamped to 0 and Long.MAX_VALUE.
+     */
+    private static long time_key(Instant time) {
+        long seconds = time.getEpochSecond();
+        if(seconds < 0) {
+            return 0;
+        }
+        if(seconds >= Long.MAX_VALUE / 1_000_000_000L) {
+            return Long.MAX_VALUE;
+        }
+        return seconds * 1_000_000_000L + time.getNano();
+    }
+
+    /**
+     * Draw the current state of the animation and display it.
+     */
+    public void render() {
+        build_screen();
+        if(track_framerate) {
+            track_frame_rate();
+            metrics.frame();
+        }
+    }
+
+    /**
+     * Update the frame rate estimate, once per frame. The rate is a running
+     * average that is updated every time the wall clock second changes.
+     */
+    private void track_frame_rate() {
+        long time = System.currentTimeMillis() / 1000;
+        if(time > last_frame_time) {
+            last_frame_time = time;
+            framerate = (framerate + (frames_this_second * 2)) / 3;
+            frames_this_second = 1;
+        } else {
+            frames_this_second++;
+        }
+    }
+
+    /**
+     * Get the flag that indicates whether the module should keep track of
+     * the animation framerate and the time spent in each phase of the
+     * animation cycle. This is enabled by default.
+     *
+     * @return
+     */
+    public boolean getTrack_framerate() {
+        return track_framerate;
+    }
+
+    public void setTrack_framerate(boolean track_framerate) {
+        this.track_framerate = track_framerate;
+    }
+
+    /**
+     * Returns the approximate number of frames being displayed
+     * per second, as indicated by calls to the I<render> method.
+     *
+     * @return
+     */
+    public double framerate() {
+        return framerate;
+    }
+
+    /**
+     * Returns the frame rate and per phase timings of the animation.
+     *
+     * @return
+     */
+    public AnimationMetrics getMetrics() {
+        return metrics;
+    }
+
 //
-//=item I<entity_count>
+//=item I<screen_size>
 //
-//    $number_of_entities = $anim->entity_count();
+//my ($width, $height, $assumed_size) = $anim->screen_size();
 //
-//    Returns the number of entities in the animation.
+//    Returns the width and height of the screen. The third value
+//    returned is a boolean indicating whether or not the default
+//    screen size was used, because the size could not be determined.
 //
 //        =cut
-//    sub entity_count {
-//    my ($self) = @_;
-//    my $count = 0;
-//    foreach (keys %{$self->{ENTITIES}}) {
-//        $count++;
-//    }
-//    return $count;
+//    sub screen_size {
+//    my $self = shift;
+//    return($self->{WIDTH}, $self->{HEIGHT}, $self->{ASSUMED_SIZE});
 //}
 //
-//=item I<get_entities>
+//=item I<update_term_size>
 //
-//    $entity_list = $anim->get_entities();
+//    $anim->update_term_size();
 //
-//    Returns a reference to a list of all entities in the animation.
+//    Call this if you suspect the terminal size has changed (eg. if you
+//        get a SIGWINCH signal). Call I<remove_all_entities> after this if
+//    you want to recreate your animation from scratch.
 //
 //        =cut
-//    sub get_entities {
-//    my ($self) = @_;
-//    my @entities = keys %{$self->{ENTITIES}};
-//    return \@entities;
-//}
-//
-//=item I<get_entities_of_type>
-//
-//    $entity_list = $anim->get_entities_of_type( $type );
-//
-//    Returns a reference to a list of all entities in the animation
-//    that have the given type.
-//
-//=cut
-//    sub get_entities_of_type {
-//    my ($self, $type) = @_;
-//    my @entities;
-//    foreach my $entity (values %{$self->{ENTITIES}}) {
-//        if($entity->{TYPE} eq $type) {
-//            push(@entities, $entity->{NAME});
-//        }
-//    }
-//    return \@entities;
-//}
-//
-//=item I<is_living>
-//
-//        my $is_living = $anim->is_living( $entity );
-//
-//    Return 1 if the entity name or reference is in the animation
-//    and is not scheduled for deletion. Returns 0 otherwise.
-//
-//=cut
-//    sub is_living {
-//    my ($self, $entity) = @_;
-//
-//    if(ref($entity) eq 'Term::Animation::Entity') {
-//        $entity = $entity->name();
-//    }
-//
-//    unless(exists($self->{'ENTITIES'}{$entity})) {
-//        return 0;
-//    }
-//
-//    foreach my $dying_ent (@{$self->{DELETEQUEUE}}) {
-//        if($dying_ent eq $entity) {
-//            return 0;
-//        }
-//    }
-//
-//    return 1;
+//    sub update_term_size {
+//    my $self = shift;
+//	# dunno how portable this is. i should probably be using
+//	# resizeterm.
+//            endwin();
+//    refresh();
+//    ($self->{WIDTH}, $self->{HEIGHT}, $self->{ASSUMED_SIZE}) = _get_term_size($self->{WIN});
 //}
 //
-//=item I<entity>
-//
-//    $entity_ref = $anim->entity( $entity_name );
-//
-//    If the animation contains an entity with the given name,
-//    the Term::Animation::Entity object associated with the name
-//    is returned. Otherwise, undef is returned.
-//
-//=cut
-//    sub entity {
-//    my ($self, $entity_name) = @_;
-//    if(defined($self->{ENTITIES}{$entity_name})) {
-//        return $self->{ENTITIES}{$entity_name};
+//# try to figure out the terminal size, and set
+//# a reasonable size if we can't. the 'assumed_size'
+//        # variable will let programs know if we had to
+//# guess or not.
+//    sub _get_term_size {
+//    my $win = shift;
+//    my ($width, $height, $assumed_size);
+//	# find the width and height of the terminal
+//    $width = $win->getmaxx();
+//    $height = $win->getmaxy();
+//    if($width and $height) {
+//        $assumed_size = 0; # so we know if we can limit the max size or not
 //    } else {
-//        return undef;
+//        $assumed_size = 1;
+//        $width = 80;
+//        $height = 24;
 //    }
+//    return($width, $height, $assumed_size);
 //}
-//
-//=item I<width>
-//
-//    $width = $anim->width();
-//
-//    Returns the width of the screen
-//
-//        =cut
-//    sub width {
-//    my ($self) = @_;
-//    return $self->{WIDTH};
-//}
-//
-//=item I<height>
-//
-//    $height = $anim->height();
-//
-//    Returns the height of the screen
-//
-//        =cut
-//    sub height {
-//    my ($self) = @_;
-//    return $self->{HEIGHT};
-//}
-//
-//=item I<size()>
-//
-//    $size = $anim->size();
-//
-//    Returns the number of characters in the curses window (width * height)
-//
-//=cut
-//    sub size {
-//    my ($self) = @_;
-//    return ( $self->{HEIGHT} * $self->{WIDTH} )
-//}
-//
-//=item I<redraw_screen>
-//
-//    $anim->redraw_screen();
-//
-//    Clear everything from the screen, and redraw what should be there. This
-//    should be called after I<update_term_size>, or if the user indicates that
-//    the screen should be redrawn to get rid of artifacts.
-//
-//        =cut
-//    sub redraw_screen {
-//    my ($self) = @_;
-//    $self->{WIN}->clear();
-//    $self->{WIN}->refresh();
-//    $self->_build_screen();
-//    $self->{WIN}->move($self->{HEIGHT}-1, $self->{WIDTH}-1);
-//    $self->{WIN}->refresh();
-//}
-//
-//# draw the elements of the screen that have changed since the last update
-//    sub _display_screen {
-//    my ($self) = @_;
-//    $self->{WIN}->move($self->{HEIGHT}-1, $self->{WIDTH}-1);
-//    $self->{WIN}->refresh();
-//}
+
+    /**
+     * Pick up a change in the terminal size. This is done before every frame
+     * is drawn, so it only needs calling to see the new size sooner. The
+     * cell buffers are resized in place, the whole screen is redrawn on the
+     * next frame and the resize listener is told.
+     *
+     * @return true if the size changed
+     */
+    public boolean update_term_size() {
+        TerminalSize newSize = screen.doResizeIfNecessary();
+        if(newSize == null || newSize.equals(size)) {
+            return false;
+        }
+        TerminalSize oldSize = size;
+        size = newSize;
+        if(backBuffer != null) {
+            backBuffer.resize(size.getColumns(), size.getRows());
+            frontBuffer.resize(size.getColumns(), size.getRows());
+            frontBuffer.invalidate();
+        }
+        fullRedraw = true;
+        if(resizeListener != null) {
+            resizeListener.accept(oldSize, newSize);
+        }
+        return true;
+    }
+
+    /**
+     * Enable or disable incremental rendering. When enabled, only the cells
+     * covered by entities that moved, changed frame or changed size since the
+     * last frame are erased and redrawn. Everything else is left as it was.
+     *
+     * @param incremental
+     */
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+        fullRedraw = true;
+    }
+
+    public boolean isIncremental()
+    {
+        return incremental;
+    }
+
+    /**
+     * Enable or disable cell buffering. When enabled, each frame is composed
+     * into a primitive back buffer and diffed against the previous frame, and
+     * only the changed cells are written to the screen, as the canonical
+     * characters sprites are already stored as. This saves work composing a
+     * frame, what is sent to the terminal is still decided by the screen's
+     * refresh, which diffs against what it last sent.
+     *
+     * @param cellBuffering
+     */
+    public void setCellBuffering(boolean cellBuffering)
+    {
+        this.cellBuffering = cellBuffering;
+        backBuffer = null;
+        frontBuffer = null;
+        fullRedraw = true;
+    }
+
+    public boolean isCellBuffering()
+    {
+        return cellBuffering;
+    }
+
+    public ForkJoinPool getUpdatePool()
+    {
+        return updatePool;
+    }
+
+    /**
+     * Run the entity callbacks in parallel on a pool, when there are at least
+     * parallelThreshold entities. Pass null to run them all on the calling
+     * thread, which is the default.
+     * <p>
+     * While running in parallel, a callback may only change its own entity.
+     * Anything else it does through the animation, such as adding or deleting
+     * entities, or an entity changing depth or becoming physical, is held
+     * back until every callback has run, then applied in the order it would
+     * have happened running serially. So an entity deleted by another
+     * entity's callback still gets its own callback that cycle. Tasks can't
+     * be scheduled and pooled entities can't be spawned from callbacks
+     * running in parallel. Entities built from the same builder share its
+     * callback path but each has its own place along it, so the default
+     * callback stepping them through a path doesn't touch shared state.
+     *
+     * @param updatePool
+     */
+    public void setUpdatePool(ForkJoinPool updatePool)
+    {
+        this.updatePool = updatePool;
+    }
+
+    public int getParallelThreshold()
+    {
+        return parallelThreshold;
+    }
+
+    /**
+     * Set the fewest entities worth running the callbacks in parallel for. Default: 1024
+     *
+     * @param parallelThreshold
+     */
+    public void setParallelThreshold(int parallelThreshold)
+    {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getUpdateChunkSize()
+    {
+        return updateChunkSize;
+    }
+
+    /**
+     * Set how many entities each parallel task updates. Default: 256
+     *
+     * @param updateChunkSize
+     */
+    public void setUpdateChunkSize(int updateChunkSize)
+    {
+        if(updateChunkSize < 1) {
+            throw new IllegalArgumentException("updateChunkSize must be positive: " + updateChunkSize);
+        }
+        this.updateChunkSize = updateChunkSize;
+    }
+
+    /**
+     * Write to the screen
+     */
+    public void build_screen() {
+        long start = track_framerate ? System.nanoTime() : 0;
+
+        update_term_size();
+
+        if(cellBuffering && (backBuffer == null || backBuffer.width != size.getColumns() || backBuffer.height != size.getRows())) {
+            backBuffer = new CellBuffer(size.getColumns(), size.getRows());
+            frontBuffer = new CellBuffer(size.getColumns(), size.getRows());
+            frontBuffer.invalidate();
+            fullRedraw = true;
+        }
+
+        if(!incremental || fullRedraw) {
+//	# clear the window before we start redrawing
+            if(cellBuffering) {
+                backBuffer.clear();
+            } else {
+                screen.clear();
+            }
+
+            // entities come out of the depth index deepest first, so they are drawn in correct order
+            for (Entity ent = entities.first(); ent != null; ent = entities.next(ent))
+            {
+                draw_entity(ent, null);
+                ent.markDrawn();
+            }
+            fullRedraw = false;
+            dirtyRectCount = 0;
+            removedRectCount = 0;
+        } else {
+            build_dirty_regions();
+        }
+
+        long composed = track_framerate ? System.nanoTime() : 0;
+
+        if(cellBuffering) {
+            backBuffer.flush(frontBuffer, screen);
+        }
+
+        try
+        {
+            screen.refresh();
+        } catch (IOException e)
+        {
+            logger.error("Unable to refresh screen '{}",e);
+        }
+
+        if(track_framerate) {
+            metrics.record(AnimationMetrics.Phase.COMPOSE, composed - start);
+            metrics.record(AnimationMetrics.Phase.FLUSH, System.nanoTime() - composed);
+        }
+    }
+
+    /**
+     * Repaint only the regions of the screen covered by entities whose position,
+     * depth, frame or size changed since they were last drawn. Both the old and
+     * the new bounding box of a changed entity are erased, then every entity
+     * overlapping a dirty region is redrawn, clipped to the dirty cells.
+     */
+    private void build_dirty_regions() {
+        int w = size.getColumns();
+        int h = size.getRows();
+
+        if(dirtyCells == null || dirtyCells.length < w * h) {
+            dirtyCells = new boolean[w * h];
+        } else {
+            Arrays.fill(dirtyCells, 0, w * h, false);
+        }
+
+        for (int r = 0; r < removedRectCount * 5; r += 5)
+        {
+            mark_dirty(removedRects[r], removedRects[r + 1], removedRects[r + 2], removedRects[r + 3], removedRects[r + 4] != 0);
+        }
+        removedRectCount = 0;
+
+        for (Entity ent = entities.first(); ent != null; ent = entities.next(ent))
+        {
+            if(ent.isDrawnStateChanged()) {
+                if(ent.drawn) {
+                    mark_dirty(ent.drawnX, ent.drawnY, ent.drawnWidth, ent.drawnHeight, ent.isWrap());
+                }
+                mark_dirty(ent.getX(), ent.getY(), ent.getWidth(), ent.getHeight(), ent.isWrap());
+            }
+        }
+
+        if(dirtyRectCount == 0) {
+            return;
+        }
+
+        // erase the dirty regions
+        for (int r = 0; r < dirtyRectCount * 4; r += 4)
+        {
+            for (int y_pos = dirtyRects[r + 1]; y_pos < dirtyRects[r + 3]; y_pos++)
+            {
+                for (int x_pos = dirtyRects[r]; x_pos < dirtyRects[r + 2]; x_pos++)
+                {
+                    erase_cell(x_pos, y_pos);
+                }
+            }
+        }
+
+        // redraw whatever overlaps them
+        for (Entity ent = entities.first(); ent != null; ent = entities.next(ent))
+        {
+            if(ent.isWrap() || intersects_dirty(ent.getX(), ent.getY(), ent.getWidth(), ent.getHeight())) {
+                draw_entity(ent, dirtyCells);
+            }
+            ent.markDrawn();
+        }
+        dirtyRectCount = 0;
+    }
+
+    /**
+     * Mark a rectangle of the screen as needing to be repainted. Wrapping
+     * entities also mark the parts that wrap around to the other edge.
+     */
+    private void mark_dirty(int x, int y, int width, int height, boolean wrap) {
+        int w = size.getColumns();
+        int h = size.getRows();
+
+        if(wrap) {
+            // split the box at every multiple of the screen size, the same
+            // way draw_entity folds wrapped cells back onto the screen
+            for (int sy = y; sy < y + height; )
+            {
+                int ey = sy < 0 ? Math.min(0, y + height) : Math.min(y + height, (sy / h + 1) * h);
+                int shiftY = sy < 0 ? 0 : sy / h * h;
+                for (int sx = x; sx < x + width; )
+                {
+                    int ex = sx < 0 ? Math.min(0, x + width) : Math.min(x + width, (sx / w + 1) * w);
+                    int shiftX = sx < 0 ? 0 : sx / w * w;
+                    add_dirty_rect(sx - shiftX, sy - shiftY, ex - sx, ey - sy);
+                    sx = ex;
+                }
+                sy = ey;
+            }
+        } else {
+            add_dirty_rect(x, y, width, height);
+        }
+    }
+
+    /**
+     * Remember where a removed entity was drawn, so the next incremental
+     * frame erases it.
+     */
+    private void mark_removed(Entity entity) {
+        if(!incremental || fullRedraw) {
+            return;
+        }
+        if(removedRectCount * 5 == removedRects.length) {
+            removedRects = Arrays.copyOf(removedRects, removedRects.length * 2);
+        }
+        int r = removedRectCount++ * 5;
+        removedRects[r] = entity.drawnX;
+        removedRects[r + 1] = entity.drawnY;
+        removedRects[r + 2] = entity.drawnWidth;
+        removedRects[r + 3] = entity.drawnHeight;
+        removedRects[r + 4] = entity.isWrap() ? 1 : 0;
+    }
+
+    private void add_dirty_rect(int x, int y, int width, int height) {
+        int w = size.getColumns();
+        int h = size.getRows();
+
+        // clip to the screen
+        int x1 = Math.max(x, 0);
+        int y1 = Math.max(y, 0);
+        int x2 = Math.min(x + width, w);
+        int y2 = Math.min(y + height, h);
+        if(x1 >= x2 || y1 >= y2) {
+            return;
+        }
+
+        if(dirtyRectCount * 4 == dirtyRects.length) {
+            dirtyRects = Arrays.copyOf(dirtyRects, dirtyRects.length * 2);
+        }
+        int r = dirtyRectCount++ * 4;
+        dirtyRects[r] = x1;
+        dirtyRects[r + 1] = y1;
+        dirtyRects[r + 2] = x2;
+        dirtyRects[r + 3] = y2;
+
+        for (int y_pos = y1; y_pos < y2; y_pos++)
+        {
+            Arrays.fill(dirtyCells, y_pos * w + x1, y_pos * w + x2, true);
+        }
+    }
+
+    private void put_cell(int x, int y, long code) {
+        if(cellBuffering) {
+            backBuffer.set(x, y, code);
+        } else {
+            screen.setCharacter(x, y, CharacterPalette.character(code));
+        }
+    }
+
+    private void erase_cell(int x, int y) {
+        if(cellBuffering) {
+            backBuffer.erase(x, y);
+        } else {
+            screen.setCharacter(x, y, TextCharacter.DEFAULT_CHARACTER);
+        }
+    }
+
+    private boolean intersects_dirty(int x, int y, int width, int height) {
+        for (int r = 0; r < dirtyRectCount * 4; r += 4)
+        {
+            if(x < dirtyRects[r + 2] && dirtyRects[r] < x + width &&
+                    y < dirtyRects[r + 3] && dirtyRects[r + 1] < y + height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+/**
+ * draw an entity into the curses window in memory
+ *
+ * @param entity entity to draw
+ * @param mask if not null, only cells set in the mask are drawn
+ */
+    void draw_entity(Entity entity, boolean[] mask) {
+
+	// a few temporary variables to make the code below easier to read
+    Sprite sprite = entity.getSprite();
+    int frame = entity.getCurr_frame();
+    long[] cells = sprite.getCells(frame);
+    int[] rowSpans = sprite.getRowSpans(frame);
+    int[] spans = sprite.getSpans(frame);
+    int width = sprite.getWidth();
+    // palette cells get their colors from the entity
+    long[][] paletteTables = null;
+    int[] paletteAttrs = null;
+    if(sprite.getPaletteSize() > 0) {
+        paletteTables = entity.palette_tables();
+        paletteAttrs = entity.palette_attrs();
+    }
+      int x = entity.getX();
+      int y = entity.getY();
+      int w = size.getColumns();
+      int h = size.getRows();
+      boolean wrap = entity.isWrap();
+
+    for (int i=0;i<sprite.getHeight();i++){
+        int y_pos = y+i;
+        if(wrap && y_pos >= h) {
+            y_pos %= h;
+        }
+        if(y_pos < 0 || y_pos >= h) {
+            continue;
+        }
+        int row = i * width;
+
+        // only the opaque runs of the row, transparent cells are never looked at
+        for (int s=rowSpans[i];s<rowSpans[i+1];s+=2) {
+            // the run in screen columns, anything left of the screen is never drawn
+            int start = Math.max(x + spans[s], 0);
+            int end = x + spans[s+1];
+
+            if(!wrap) {
+                end = Math.min(end, w);
+                if(start < end) {
+                    blit_run(start, y_pos, cells, row + start - x, end - start, mask, paletteAttrs, paletteTables);
+                }
+                continue;
+            }
+
+            // split the run at each multiple of the screen width, and fold each piece back onto the screen
+            while(start < end) {
+                int fold = start / w * w;
+                int piece = Math.min(end, fold + w);
+                blit_run(start - fold, y_pos, cells, row + start - x, piece - start, mask, paletteAttrs, paletteTables);
+                start = piece;
+            }
+        }
+    }
+}
+
+/**
+ * draw a run of opaque cells that has already been clipped to the screen
+ *
+ * @param x_pos screen column of the first cell
+ * @param y_pos screen row
+ * @param cells cell codes
+ * @param offset index of the first cell in cells
+ * @param length number of cells
+ * @param mask if not null, only cells set in the mask are drawn
+ * @param paletteAttrs the entity's palette, if the cells include palette cells
+ * @param paletteTables
+ */
+    private void blit_run(int x_pos, int y_pos, long[] cells, int offset, int length, boolean[] mask,
+                          int[] paletteAttrs, long[][] paletteTables) {
+        if(paletteTables != null) {
+            // palette cells have to be resolved one at a time
+            int m = y_pos * size.getColumns() + x_pos;
+            for (int j = 0; j < length; j++)
+            {
+                if(mask == null || mask[m + j]) {
+                    long code = cells[offset + j];
+                    if(CharacterPalette.isPaletteCell(code)) {
+                        code = CharacterPalette.resolve(code, paletteAttrs, paletteTables);
+                    }
+                    put_cell(x_pos + j, y_pos, code);
+                }
+            }
+            return;
+        }
+
+        if(mask == null) {
+            if(cellBuffering) {
+                backBuffer.set(x_pos, y_pos, cells, offset, length);
+            } else {
+                for (int j = 0; j < length; j++)
+                {
+                    screen.setCharacter(x_pos + j, y_pos, CharacterPalette.character(cells[offset + j]));
+                }
+            }
+            return;
+        }
+
+        int m = y_pos * size.getColumns() + x_pos;
+        for (int j = 0; j < length; j++)
+        {
+            if(mask[m + j]) {
+                put_cell(x_pos + j, y_pos, cells[offset + j]);
+            }
+        }
+    }
+
+    /**
+     * Removes an entity from the animation. The entity is queued, and is
+     * removed at the end of the current animation cycle.
+     *
+     * @param entity
+     */
+    public void del_entity(Entity entity) {
+        CommandQueue queue = deferred();
+        if(queue != null) {
+            queue.add(CommandQueue.DELETE, entity);
+            return;
+        }
+        if(entity.animation != this) {
+            logger.warn("Attempted to destroy nonexistant entity '{}'", entity.getName());
+        } else if(!entity.dying) {
+            entity.dying = true;
+            deleteQueue.add(entity);
+        }
+    }
+
+    /**
+     * Removes an entity from the animation, given its handle. Does nothing
+     * if the entity has already left the animation.
+     *
+     * @param handle see {@link Entity#getHandle()}
+     */
+    public void del_entity(long handle) {
+        Entity entity = slots.get(handle);
+        if(entity != null) {
+            del_entity(entity);
+        }
+    }
+
+    /**
+     * Removes an entity from the animation, given its name.
+     *
+     * @param name
+     */
+    public void del_entity(String name) {
+        Entity entity = names.get(name);
+        if(entity != null) {
+            del_entity(entity);
+        } else {
+            logger.warn("Attempted to destroy nonexistant entity '{}'", name);
+        }
+    }
+
+    /**
+     * go through the list of entities that have been queued for
+     * deletion using del_entity and remove them
+     */
+    private void remove_deleted_entities() {
+        // death callbacks may kill more entities, they are queued behind these ones
+        for (int i = 0; i < deleteQueue.size(); i++)
+        {
+            Entity entity = deleteQueue.get(i);
+            if(entity.getDeath_cb() != null) {
+                Entity replacement = entity.getDeath_cb().apply(new Object[]{entity, this});
+                if(replacement != null && replacement != entity) {
+                    add_entity(replacement);
+                }
+            }
+            remove_entity(entity);
+            if(entity.pool != null) {
+                return_to_pool(entity);
+            }
+        }
+        deleteQueue.clear();
+    }
+
+    private void remove_entity(Entity entity) {
+        if(entity.physicalIndex >= 0) {
+            remove_physical(entity);
+        }
+        if(entity.followerIndex >= 0) {
+            remove_follower(entity);
+        }
+        cancel_death(entity);
+        entities.remove(entity);
+        slots.remove(entity);
+        if(entity.getName() != null) {
+            names.remove(entity.getName(), entity);
+        }
+        if(entity.drawn) {
+            // the space it was drawn in needs to be repainted
+            mark_removed(entity);
+        }
+        entity.animation = null;
+        entity.dying = false;
+    }
+
+    /**
+     * Removes every animation object. This is useful if you need to start the
+     * animation over (eg. after a screen resize). Pooled entities go back to
+     * their pool, as they do when they die.
+     */
+    public void remove_all_entities() {
+        for (Entity entity = entities.first(); entity != null; entity = entities.next(entity))
+        {
+            cancel_death(entity);
+            entity.animation = null;
+            entity.dying = false;
+            entity.physicalIndex = -1;
+            entity.followerIndex = -1;
+            if(entity.pool != null) {
+                return_to_pool(entity);
+            }
+        }
+        entities.clear();
+        slots.clear();
+        physicalEntities.clear();
+        followers.clear();
+        Arrays.fill(followOrder, 0, followOrderSize, null);
+        followOrderSize = 0;
+        followOrderDirty = false;
+        names.clear();
+        deleteQueue.clear();
+        fullRedraw = true;
+    }
+
+    /**
+     * Returns the number of entities in the animation.
+     *
+     * @return
+     */
+    public int entity_count() {
+        return entities.size();
+    }
+
+    /**
+     * Returns the number of physical entities in the animation.
+     *
+     * @return
+     */
+    public int physical_count() {
+        return physicalEntities.size();
+    }
+
+    /**
+     * Returns a list of all entities in the animation, in draw order.
+     *
+     * @return
+     */
+    public List<Entity> get_entities() {
+        List<Entity> result = new ArrayList<>(entities.size());
+        for (Entity entity = entities.first(); entity != null; entity = entities.next(entity))
+        {
+            result.add(entity);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a list of all entities in the animation that have the given type.
+     *
+     * @param type
+     * @return
+     */
+    public List<Entity> get_entities_of_type(String type) {
+        List<Entity> result = new ArrayList<>();
+        for (Entity entity = entities.first(); entity != null; entity = entities.next(entity))
+        {
+            if(type.equals(entity.getType())) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return true if the entity is in the animation and is not scheduled
+     * for deletion.
+     *
+     * @param entity
+     * @return
+     */
+    public boolean is_living(Entity entity) {
+        return entity.animation == this && !entity.dying;
+    }
+
+    /**
+     * Return true if an entity with the given name is in the animation
+     * and is not scheduled for deletion.
+     *
+     * @param name
+     * @return
+     */
+    public boolean is_living(String name) {
+        Entity entity = names.get(name);
+        return entity != null && is_living(entity);
+    }
+
+    /**
+     * If the animation contains an entity with the given name, it is
+     * returned. Otherwise null is returned.
+     *
+     * @param name
+     * @return
+     */
+    public Entity entity(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * Returns the entity a handle refers to, or null if that entity has left
+     * the animation.
+     *
+     * @param handle see {@link Entity#getHandle()}
+     * @return
+     */
+    public Entity entity(long handle) {
+        return slots.get(handle);
+    }
+
+    /**
+     * Return true if the entity a handle refers to is in the animation and
+     * is not scheduled for deletion.
+     *
+     * @param handle
+     * @return
+     */
+    public boolean is_living(long handle) {
+        Entity entity = slots.get(handle);
+        return entity != null && is_living(entity);
+    }
+
+    /**
+     * Returns the width of the screen
+     *
+     * @return
+     */
+    public int width() {
+        return size.getColumns();
+    }
+
+    /**
+     * Returns the height of the screen
+     *
+     * @return
+     */
+    public int height() {
+        return size.getRows();
+    }
+
+    /**
+     * Clear everything from the screen, and redraw what should be there. This
+     * should be called if the user indicates that the screen should be redrawn
+     * to get rid of artifacts.
+     */
+    public void redraw_screen() {
+        fullRedraw = true;
+        if(frontBuffer != null) {
+            frontBuffer.invalidate();
+        }
+        try
+        {
+            screen.refresh(Screen.RefreshType.COMPLETE);
+        } catch (IOException e)
+        {
+            logger.error("Unable to refresh screen '{}",e);
+        }
+        build_screen();
+    }
+
+    public Screen getScreen() {
+        return screen;
+    }
 //
 //
 //=item I<gen_path>
@@ -875,104 +1796,320 @@ sub DESTROY {
 //    return \@path;
 //}
 //
-//
-//# run the callback routines for all entities that have them, and update
-//# the entity accordingly. also checks for auto death status
-//    sub _do_callbacks {
-//    my ($self) = @_;
-//
-//    foreach my $entity (keys %{$self->{ENTITIES}}) {
-//        my $ent = $self->{ENTITIES}{$entity};
-//
-//		# check for methods to automatically die
-//        if(defined($ent->{'DIE_TIME'}) and $ent->{'DIE_TIME'} <= time()) {
-//            del_entity($self, $entity); next;
-//        }
-//
-//        if(defined($ent->{'DIE_FRAME'}) and ($ent->{'DIE_FRAME'}--) <= 0) {
-//            del_entity($self, $entity); next;
-//        }
-//
-//        if(defined($ent->{'DIE_ENTITY'}) and !$self->is_living($ent->{'DIE_ENTITY'}) ) {
-//            del_entity($self, $entity); next;
-//        }
-//
-//        if($ent->{'DIE_OFFSCREEN'}) {
-//            if($ent->{X} >= $self->{WIDTH} or $ent->{Y} >= $self->{HEIGHT} or
-//            $ent->{X} < (0 - $ent->{WIDTH}) or $ent->{Y} < (0 - $ent->{HEIGHT})) {
-//                del_entity($self, $entity); next;
-//            }
-//        }
-//
-//        if(defined($ent->{CALLBACK})) {
-//            my ($x, $y, $z, $f) = $ent->{CALLBACK}->($ent, $self);
-//            if(defined($x)) {
-//                if($ent->{WRAP}) {
-//                    if($x >= $self->{WIDTH}) { $x = ($x - int($x)) + ($x % $self->{WIDTH});  }
-//                    elsif($x < 0)            { $x = ($x - int($x)) + ($x % $self->{WIDTH});  }
-//                }
-//                $ent->{X} = $x;
-//            }
-//            if(defined($y)) {
-//                if($ent->{WRAP}) {
-//                    if($y >= $self->{HEIGHT}) { $y = ($y - int($y)) + ($y % $self->{HEIGHT}); }
-//                    elsif($y < 0)             { $y = ($y - int($y)) + ($y % $self->{HEIGHT}); }
-//                }
-//                $ent->{Y} = $y;
-//            }
-//            $ent->{Z} = defined($z) ? $z : $ent->{Z};
-//            $ent->{CURR_FRAME} = defined($f) ? $f : $ent->{CURR_FRAME};
-//
-//        }
-//    }
-//}
-//
-//# called after all other updates. moves any entities that
-//# follow another entity
-//    sub _move_followers {
-//    my ($self) = @_;
-//
-//    foreach my $entity_name (keys %{$self->{ENTITIES}}) {
-//        my $follower = $self->{ENTITIES}{$entity_name};
-//
-//        next unless(defined($follower->{FOLLOW_ENTITY}));
-//
-//        my $leader = $self->entity($follower->{FOLLOW_ENTITY});
-//        next unless(defined($leader));
-//        my $offset = $follower->{FOLLOW_OFFSET};
-//
-//        if(defined($offset->[0])) { $follower->x( $offset->[0] + $leader->x ); }
-//        if(defined($offset->[1])) { $follower->y( $offset->[1] + $leader->y ); }
-//        if(defined($offset->[2])) { $follower->z( $offset->[2] + $leader->z ); }
-//        if(defined($offset->[3])) { $follower->frame( $offset->[3] + $leader->frame ); }
-//    }
-//}
-//
-//    sub _collision_handlers {
-//    my ($self) = @_;
-//    foreach my $entity (values %{$self->{ENTITIES}}) {
-//        if(defined($entity->{COLL_HANDLER}) && defined($entity->{COLLISIONS})) {
-//            $entity->{COLL_HANDLER}->($entity, $self);
-//        }
-//        $entity->{COLLISIONS} = ();
-//    }
-//}
-//
-//=item I<end>
-//
-//    $anim->end();
-//
-//    Run the Curses endwin function to get your terminal back to its
-//    normal mode. This is called automatically when the object is
-//    destroyed if the animation is running full screen (if you
-//        did not pass an existing Curses window to the constructor).
-//
-//        =cut
-//    sub end {
-//    my ($self) = @_;
-//    endwin;
-//}
-//
+
+    /**
+     * Copy the current entities into the update list, so the phases that run
+     * callbacks are not affected by entities changing depth, or being added
+     * while they run.
+     *
+     * @return the number of entities copied
+     */
+    private int snapshot_entities() {
+        if(updateList.length < entities.size()) {
+            updateList = new Entity[Math.max(entities.size(), updateList.length * 2)];
+        }
+        int count = 0;
+        for (Entity entity = entities.first(); entity != null; entity = entities.next(entity))
+        {
+            updateList[count++] = entity;
+        }
+        return count;
+    }
+
+    /**
+     * run the callback routines for all entities that have them, and update
+     * the entity accordingly. also checks for auto death status
+     */
+    private void do_callbacks() {
+        Instant now = clock.instant();
+        run_scheduled(now);
+        updating = true;
+
+        int count = snapshot_entities();
+        int w = size.getColumns();
+        int h = size.getRows();
+
+        if(updatePool != null && count >= parallelThreshold) {
+            do_callbacks_parallel(count, w, h);
+        } else {
+            for (int i = 0; i < count; i++)
+            {
+                update_entity(updateList[i], w, h);
+            }
+        }
+        Arrays.fill(updateList, 0, count, null);
+    }
+
+    /**
+     * check an entity for automatic death, and run its callback. die_time
+     * and die_frame are handled by the timing wheels before this runs.
+     */
+    private void update_entity(Entity ent, int w, int h) {
+        if(!is_living(ent)) {
+            return;
+        }
+
+        // check for methods to automatically die
+        if(ent.getDie_entity() != null && !is_living(ent.getDie_entity())) {
+            del_entity(ent);
+            return;
+        }
+
+        if(ent.isDie_offscreen()) {
+            if(ent.getExactX() >= w || ent.getExactY() >= h ||
+                    ent.getExactX() < -ent.getWidth() || ent.getExactY() < -ent.getHeight()) {
+                del_entity(ent);
+                return;
+            }
+        }
+
+        if(ent.getCallback() != null) {
+            ent.getCallback().accept(ent, this);
+            if(ent.isWrap()) {
+                ent.wrap_to(w, h);
+            }
+        }
+    }
+
+    /**
+     * Run update_entity over the update list on the update pool. The list is
+     * cut into chunks of updateChunkSize entities, and anything the callbacks
+     * do to the animation is recorded in a command queue per chunk, then
+     * replayed chunk by chunk once they have all finished.
+     */
+    private void do_callbacks_parallel(int count, int w, int h) {
+        int chunks = (count + updateChunkSize - 1) / updateChunkSize;
+        if(commandQueues.length < chunks) {
+            int old = commandQueues.length;
+            commandQueues = Arrays.copyOf(commandQueues, Math.max(chunks, old * 2));
+            for (int c = old; c < commandQueues.length; c++)
+            {
+                commandQueues[c] = new CommandQueue();
+            }
+        }
+
+        updatingInParallel = true;
+        try {
+            updatePool.invoke(new CallbackTask(0, chunks, count, w, h));
+        } finally {
+            updatingInParallel = false;
+            for (int c = 0; c < chunks; c++)
+            {
+                commandQueues[c].replay(this);
+            }
+        }
+    }
+
+    /**
+     * Returns the command queue of the chunk being updated by the calling
+     * thread, if changes to the animation have to be deferred, or null if
+     * they can be made straight away.
+     */
+    private CommandQueue deferred() {
+        return updatingInParallel ? currentQueue.get() : null;
+    }
+
+    /**
+     * Updates a range of chunks of the update list, splitting it in half
+     * until there is a single chunk left.
+     */
+    @SuppressWarnings("serial")
+    private final class CallbackTask extends RecursiveAction {
+        private final int firstChunk;
+        private final int endChunk;
+        private final int count;
+        private final int w;
+        private final int h;
+
+        CallbackTask(int firstChunk, int endChunk, int count, int w, int h) {
+            this.firstChunk = firstChunk;
+            this.endChunk = endChunk;
+            this.count = count;
+            this.w = w;
+            this.h = h;
+        }
+
+        @Override
+        protected void compute() {
+            if(endChunk - firstChunk > 1) {
+                int middle = (firstChunk + endChunk) >>> 1;
+                invokeAll(new CallbackTask(firstChunk, middle, count, w, h),
+                        new CallbackTask(middle, endChunk, count, w, h));
+                return;
+            }
+
+            currentQueue.set(commandQueues[firstChunk]);
+            try {
+                int end = Math.min(count, (firstChunk + 1) * updateChunkSize);
+                for (int i = firstChunk * updateChunkSize; i < end; i++)
+                {
+                    update_entity(updateList[i], w, h);
+                }
+            } finally {
+                currentQueue.remove();
+            }
+        }
+    }
+
+    /**
+     * called after all other updates. moves any entities that
+     * follow another entity. Leaders are moved before their followers, so
+     * a whole chain (a follower of a follower) moves together in one pass.
+     */
+    private void move_followers() {
+        if(followers.isEmpty()) {
+            return;
+        }
+        if(followOrderDirty) {
+            build_follow_order();
+        }
+
+        for (int i = 0; i < followOrderSize; i++)
+        {
+            Entity follower = followOrder[i];
+            Entity leader = follower.getFollow_entity();
+            int[] offset = follower.getFollow_offset();
+            if(leader == null || offset == null || leader.animation != this) {
+                continue;
+            }
+
+            if(offset.length > 0) { follower.setX(leader.getExactX() + offset[0]); }
+            if(offset.length > 1) { follower.setY(leader.getExactY() + offset[1]); }
+            if(offset.length > 2) { follower.setZ(leader.getExactZ() + offset[2]); }
+            if(offset.length > 3) { follower.setCurr_frame(leader.getCurr_frame() + offset[3]); }
+        }
+    }
+
+    /**
+     * Called by an entity in this animation when the entity it follows changes.
+     *
+     * @param entity
+     */
+    void follow_changed(Entity entity) {
+        CommandQueue queue = deferred();
+        if(queue != null) {
+            queue.add(CommandQueue.FOLLOW_CHANGED, entity);
+            return;
+        }
+        update_follower(entity);
+    }
+
+    private void update_follower(Entity entity) {
+        if(entity.getFollow_entity() != null) {
+            if(entity.followerIndex < 0) {
+                entity.followerIndex = followers.size();
+                followers.add(entity);
+            }
+            // even if it was already following, what it follows has changed
+            followOrderDirty = true;
+        } else if(entity.followerIndex >= 0) {
+            remove_follower(entity);
+        }
+    }
+
+    private void remove_follower(Entity entity) {
+        // swap the last follower into the hole so removal is O(1)
+        Entity last = followers.remove(followers.size() - 1);
+        if(last != entity) {
+            followers.set(entity.followerIndex, last);
+            last.followerIndex = entity.followerIndex;
+        }
+        entity.followerIndex = -1;
+        followOrderDirty = true;
+    }
+
+    /**
+     * Work out the order to move the followers in, so every follower comes
+     * after the entity it follows. Only runs when following has changed. Each
+     * follower's chain of leaders is walked up until it reaches an entity
+     * that isn't following anything in this animation, or one already placed,
+     * then the chain is placed from the top down, so every follower is
+     * visited once. A chain that comes back round to itself is a cycle,
+     * which is reported and broken where it was found.
+     */
+    private void build_follow_order() {
+        int count = followers.size();
+        if(followOrder.length < count) {
+            followOrder = new Entity[Math.max(count, followOrder.length * 2)];
+        } else if(followOrderSize > count) {
+            Arrays.fill(followOrder, count, followOrderSize, null);
+        }
+        if(followStamp == Integer.MAX_VALUE) {
+            followStamp = 0;
+            for (Entity follower : followers) { follower.followMark = 0; }
+        }
+        // stamp marks a follower as placed, -stamp as on the chain being walked
+        int stamp = ++followStamp;
+        int size = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            // walk up the chain, parking it in updateList which is free between phases
+            int chain = 0;
+            Entity entity = followers.get(i);
+            while (entity != null && entity.animation == this && entity.followerIndex >= 0
+                    && entity.followMark != stamp) {
+                if(entity.followMark == -stamp) {
+                    logger.warn("Entity '{}' is following itself through a cycle of followers", entity.getName());
+                    break;
+                }
+                entity.followMark = -stamp;
+                if(chain == updateList.length) {
+                    updateList = Arrays.copyOf(updateList, chain * 2);
+                }
+                updateList[chain++] = entity;
+                entity = entity.getFollow_entity();
+            }
+            // place it from the top down
+            while (chain > 0) {
+                Entity placed = updateList[--chain];
+                updateList[chain] = null;
+                placed.followMark = stamp;
+                followOrder[size++] = placed;
+            }
+        }
+        followOrderSize = size;
+        followOrderDirty = false;
+    }
+
+    /**
+     * Run the collision handlers of the entities that collided with something,
+     * then forget the collisions.
+     */
+    private void collision_handlers() {
+        int count = physicalEntities.size();
+        if(updateList.length < count) {
+            updateList = new Entity[Math.max(count, updateList.length * 2)];
+        }
+        for (int i = 0; i < count; i++)
+        {
+            updateList[i] = physicalEntities.get(i);
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            Entity entity = updateList[i];
+            if(entity.getColl_handler() != null && !entity.getCollisions().isEmpty()) {
+                entity.getColl_handler().accept(entity, this);
+            }
+            entity.getCollisions().clear();
+        }
+        Arrays.fill(updateList, 0, count, null);
+    }
+
+/**
+ * Stop the screen to get the terminal back to its normal mode.
+ */
+    public void end() {
+        try
+        {
+            screen.stopScreen();
+        } catch (IOException e)
+        {
+            logger.error("Unable to stop screen '{}",e);
+        }
+    }
+
 //# write to a log file, for debugging
 //    sub _elog {
 //    my ($mesg) = @_;
@@ -0,0 +1,206 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.input.KeyStroke;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Drives an {@link Animation} with a fixed timestep. The simulation is
+ * advanced with {@link Animation#update()} at a fixed number of ticks per
+ * second, independently of how often the screen is drawn.
+ * <p>
+ * Each pass of the loop runs every tick that has come due and then draws a
+ * single frame. If drawing is slow, the ticks that came due in the meantime
+ * all run before the next frame, so frames are skipped rather than the
+ * simulation slowing down. If even the ticks can't keep up, at most
+ * maxTicksPerFrame are run per frame and the rest of the backlog is dropped,
+ * so the loop never spirals further and further behind.
+ * <p>
+ * Input is polled once per pass and handed to the input handler.
+ */
+public class AnimationLoop
+{
+    private final Animation animation;
+    private final long tickNanos;
+    private int maxTicksPerFrame = 5;
+    private Consumer<KeyStroke> inputHandler;
+
+    private volatile boolean running = false;
+    private volatile boolean paused = false;
+
+    // counters
+    private long ticks = 0;
+    private long frames = 0;
+    private long droppedTicks = 0;
+
+    /**
+     * @param animation      the animation to drive
+     * @param ticksPerSecond how many simulation ticks to run per second
+     */
+    public AnimationLoop(Animation animation, int ticksPerSecond)
+    {
+        if (ticksPerSecond < 1)
+        {
+            throw new IllegalArgumentException("ticksPerSecond must be positive: " + ticksPerSecond);
+        }
+        this.animation = animation;
+        this.tickNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+    }
+
+    /**
+     * Run the loop on the calling thread until {@link #stop()} is called.
+     *
+     * @throws IOException if reading input fails
+     */
+    public void run() throws IOException
+    {
+        running = true;
+        long nextTick = System.nanoTime();
+
+        while (running)
+        {
+            if (inputHandler != null)
+            {
+                KeyStroke key;
+                while (running && (key = animation.screen.pollInput()) != null)
+                {
+                    inputHandler.accept(key);
+                }
+                if (!running)
+                {
+                    break;
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - nextTick < 0)
+            {
+                // nothing due yet
+                LockSupport.parkNanos(nextTick - now);
+                continue;
+            }
+
+            if (paused)
+            {
+                // don't build up a backlog while paused
+                nextTick = now + tickNanos;
+                continue;
+            }
+
+            int due = 0;
+            while (now - nextTick >= 0 && due < maxTicksPerFrame)
+            {
+                animation.update();
+                nextTick += tickNanos;
+                ticks++;
+                due++;
+            }
+            if (now - nextTick >= 0)
+            {
+                // too far behind to catch up, drop the backlog
+                long behind = (now - nextTick) / tickNanos + 1;
+                droppedTicks += behind;
+                nextTick += behind * tickNanos;
+            }
+
+            animation.render();
+            frames++;
+        }
+    }
+
+    /**
+     * Make {@link #run()} return after the current pass.
+     */
+    public void stop()
+    {
+        running = false;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Pause or resume the simulation. Input is still handled while paused.
+     *
+     * @param paused
+     */
+    public void setPaused(boolean paused)
+    {
+        this.paused = paused;
+    }
+
+    public int getMaxTicksPerFrame()
+    {
+        return maxTicksPerFrame;
+    }
+
+    /**
+     * Set the most ticks that are run before a frame is drawn when the loop
+     * is behind. Default: 5
+     *
+     * @param maxTicksPerFrame
+     */
+    public void setMaxTicksPerFrame(int maxTicksPerFrame)
+    {
+        if (maxTicksPerFrame < 1)
+        {
+            throw new IllegalArgumentException("maxTicksPerFrame must be positive: " + maxTicksPerFrame);
+        }
+        this.maxTicksPerFrame = maxTicksPerFrame;
+    }
+
+    public Consumer<KeyStroke> getInputHandler()
+    {
+        return inputHandler;
+    }
+
+    /**
+     * Set the routine called for every key stroke read from the screen.
+     *
+     * @param inputHandler
+     */
+    public void setInputHandler(Consumer<KeyStroke> inputHandler)
+    {
+        this.inputHandler = inputHandler;
+    }
+
+    /**
+     * Returns the number of simulation ticks run so far.
+     *
+     * @return
+     */
+    public long getTicks()
+    {
+        return ticks;
+    }
+
+    /**
+     * Returns the number of frames drawn so far.
+     *
+     * @return
+     */
+    public long getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * Returns the number of ticks dropped because the loop fell too far behind.
+     *
+     * @return
+     */
+    public long getDroppedTicks()
+    {
+        return droppedTicks;
+    }
+}
@@ -0,0 +1,297 @@
+package ranbato.term.Animation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Frame rate and per phase timings for an {@link Animation}. Each phase of
+ * the animation cycle is timed with {@link System#nanoTime()} and recorded
+ * into its own {@link LatencyHistogram}, so the phase that blows the frame
+ * budget can be picked out by its p50 / p99.
+ * <p>
+ * Timings are only recorded while the animation is tracking its frame rate,
+ * see {@link Animation#setTrack_framerate(boolean)}. The metrics can be read
+ * here, or over JMX once {@link #register(String)} has been called.
+ */
+public class AnimationMetrics implements AnimationMetricsMXBean
+{
+    static private final Logger logger = LoggerFactory.getLogger(AnimationMetrics.class);
+
+    /**
+     * The timed phases of the animation cycle
+     */
+    public enum Phase
+    {
+        // update
+        CALLBACKS,
+        COLLISIONS,
+        DELETION,
+        FOLLOWERS,
+
+        // render
+        COMPOSE,
+        FLUSH
+    }
+
+    private final Animation animation;
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+    private volatile long ticks = 0;
+    private volatile long frames = 0;
+    private ObjectName objectName;
+
+    AnimationMetrics(Animation animation)
+    {
+        this.animation = animation;
+        for (Phase phase : Phase.values())
+        {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    void record(Phase phase, long nanos)
+    {
+        histograms.get(phase).record(nanos);
+    }
+
+    void tick()
+    {
+        ticks++;
+    }
+
+    void frame()
+    {
+        frames++;
+    }
+
+    /**
+     * Returns the time spent in a phase at a percentile, in nanoseconds.
+     *
+     * @param phase
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public long getPercentileNanos(Phase phase, double percentile)
+    {
+        return histograms.get(phase).getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns the mean time spent in a phase, in nanoseconds.
+     *
+     * @param phase
+     * @return
+     */
+    public double getMeanNanos(Phase phase)
+    {
+        return histograms.get(phase).getMean();
+    }
+
+    /**
+     * Returns the total time spent in a phase since the metrics were last
+     * reset, in nanoseconds.
+     *
+     * @param phase
+     * @return
+     */
+    public long getTotalNanos(Phase phase)
+    {
+        return histograms.get(phase).getTotal();
+    }
+
+    /**
+     * Returns the longest time spent in a phase, in nanoseconds.
+     *
+     * @param phase
+     * @return
+     */
+    public long getMaxNanos(Phase phase)
+    {
+        return histograms.get(phase).getMax();
+    }
+
+    /**
+     * Returns the number of times a phase has been timed.
+     *
+     * @param phase
+     * @return
+     */
+    public long getCount(Phase phase)
+    {
+        return histograms.get(phase).getCount();
+    }
+
+    /**
+     * Register these metrics with the platform MBean server, under
+     * ranbato.term.Animation:type=AnimationMetrics,name=<name>
+     *
+     * @param name
+     */
+    public synchronized void register(String name)
+    {
+        unregister();
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("ranbato.term.Animation:type=AnimationMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (JMException e)
+        {
+            logger.error("Unable to register metrics '{}'", name, e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregister()
+    {
+        if (objectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e)
+        {
+            logger.warn("Unable to unregister metrics '{}'", objectName, e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public double getFramerate()
+    {
+        return animation.framerate();
+    }
+
+    @Override
+    public int getEntityCount()
+    {
+        return animation.entity_count();
+    }
+
+    @Override
+    public int getPhysicalEntityCount()
+    {
+        return animation.physical_count();
+    }
+
+    @Override
+    public long getTicks()
+    {
+        return ticks;
+    }
+
+    @Override
+    public long getFrames()
+    {
+        return frames;
+    }
+
+    private double micros(Phase phase, double percentile)
+    {
+        return getPercentileNanos(phase, percentile) / 1000.0;
+    }
+
+    @Override
+    public double getCallbacksP50Micros()
+    {
+        return micros(Phase.CALLBACKS, 50);
+    }
+
+    @Override
+    public double getCallbacksP99Micros()
+    {
+        return micros(Phase.CALLBACKS, 99);
+    }
+
+    @Override
+    public double getCollisionsP50Micros()
+    {
+        return micros(Phase.COLLISIONS, 50);
+    }
+
+    @Override
+    public double getCollisionsP99Micros()
+    {
+        return micros(Phase.COLLISIONS, 99);
+    }
+
+    @Override
+    public double getDeletionP50Micros()
+    {
+        return micros(Phase.DELETION, 50);
+    }
+
+    @Override
+    public double getDeletionP99Micros()
+    {
+        return micros(Phase.DELETION, 99);
+    }
+
+    @Override
+    public double getFollowersP50Micros()
+    {
+        return micros(Phase.FOLLOWERS, 50);
+    }
+
+    @Override
+    public double getFollowersP99Micros()
+    {
+        return micros(Phase.FOLLOWERS, 99);
+    }
+
+    @Override
+    public double getComposeP50Micros()
+    {
+        return micros(Phase.COMPOSE, 50);
+    }
+
+    @Override
+    public double getComposeP99Micros()
+    {
+        return micros(Phase.COMPOSE, 99);
+    }
+
+    @Override
+    public double getFlushP50Micros()
+    {
+        return micros(Phase.FLUSH, 50);
+    }
+
+    @Override
+    public double getFlushP99Micros()
+    {
+        return micros(Phase.FLUSH, 99);
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LatencyHistogram histogram : histograms.values())
+        {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("fps %.1f, %d entities (%d physical)", getFramerate(), getEntityCount(), getPhysicalEntityCount()));
+        for (Phase phase : Phase.values())
+        {
+            sb.append(String.format(", %s p50 %.1fus p99 %.1fus", phase.name().toLowerCase(), micros(phase, 50), micros(phase, 99)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package ranbato.term.Animation;
+
+/**
+ * JMX view of {@link AnimationMetrics}. Phase timings are in microseconds.
+ */
+public interface AnimationMetricsMXBean
+{
+    double getFramerate();
+
+    int getEntityCount();
+
+    int getPhysicalEntityCount();
+
+    long getTicks();
+
+    long getFrames();
+
+    double getCallbacksP50Micros();
+
+    double getCallbacksP99Micros();
+
+    double getCollisionsP50Micros();
+
+    double getCollisionsP99Micros();
+
+    double getDeletionP50Micros();
+
+    double getDeletionP99Micros();
+
+    double getFollowersP50Micros();
+
+    double getFollowersP99Micros();
+
+    double getComposeP50Micros();
+
+    double getComposeP99Micros();
+
+    double getFlushP50Micros();
+
+    double getFlushP99Micros();
+
+    /**
+     * Forget all recorded timings
+     */
+    void reset();
+}
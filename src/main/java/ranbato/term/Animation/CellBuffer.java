@@ -0,0 +1,205 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.SGR;
+import com.googlecode.lanterna.TextCharacter;
+import com.googlecode.lanterna.TextColor;
+import com.googlecode.lanterna.screen.Screen;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * A primitive screen sized buffer, holding the {@link CharacterPalette}
+ * code of each cell. The code carries the character, its packed attribute
+ * word, laid out as
+ * <pre>
+ *   bits  0-7   foreground color index (see {@link ColorIndex})
+ *   bits  8-15  background color index
+ *   bits 16-24  SGR modifiers, one bit per {@link SGR} ordinal
+ * </pre>
+ * and the id of its canonical TextCharacter. Frames are composed into a
+ * back buffer and then diffed against the front buffer holding what is
+ * already on the screen, so only changed cells get written to the screen,
+ * as the canonical TextCharacters.
+ */
+class CellBuffer
+{
+    static final int BLANK_ATTR = attr(TextCharacter.DEFAULT_CHARACTER);
+
+    // a code no real cell can have, used to force a repaint
+    private static final long INVALID = CharacterPalette.TRANSPARENT;
+
+    private static final SGR[] SGRS = SGR.values();
+    private static final EnumSet<SGR>[] modifierSets = newModifierSets();
+
+    // after the modifier sets, which the palette needs to create it
+    private static final long BLANK = CharacterPalette.code(' ', BLANK_ATTR);
+
+    int width;
+    int height;
+    // may be bigger than width * height after the buffer has shrunk
+    long[] codes;
+
+    CellBuffer(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        codes = new long[width * height];
+        clear();
+    }
+
+    /**
+     * Change the size of the buffer, leaving it blank. The arrays are only
+     * reallocated if the new size doesn't fit in them, so going back and
+     * forth between sizes doesn't allocate.
+     *
+     * @param width
+     * @param height
+     */
+    void resize(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        if (codes.length < width * height)
+        {
+            codes = new long[width * height];
+        }
+        clear();
+    }
+
+    /**
+     * Pack a foreground color index, background color index and SGR bits
+     * into an attribute word.
+     */
+    static int attr(int fg, int bg, int sgr)
+    {
+        return fg | (bg << 8) | (sgr << 16);
+    }
+
+    static int attr(TextCharacter character)
+    {
+        return attr(ColorIndex.indexOf(character.getForegroundColor()),
+                ColorIndex.indexOf(character.getBackgroundColor()),
+                sgrBits(character.getModifiers()));
+    }
+
+    static int sgrBits(EnumSet<SGR> modifiers)
+    {
+        int bits = 0;
+        for (SGR sgr : modifiers)
+        {
+            bits |= 1 << sgr.ordinal();
+        }
+        return bits;
+    }
+
+    static TextColor foreground(int attr)
+    {
+        return ColorIndex.colorOf(attr & 0xFF);
+    }
+
+    static TextColor background(int attr)
+    {
+        return ColorIndex.colorOf((attr >>> 8) & 0xFF);
+    }
+
+    static EnumSet<SGR> modifiers(int attr)
+    {
+        return modifierSets[attr >>> 16];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static EnumSet<SGR>[] newModifierSets()
+    {
+        EnumSet<SGR>[] sets = new EnumSet[1 << SGRS.length];
+        for (int bits = 0; bits < sets.length; bits++)
+        {
+            sets[bits] = EnumSet.noneOf(SGR.class);
+            for (SGR sgr : SGRS)
+            {
+                if ((bits & (1 << sgr.ordinal())) != 0)
+                {
+                    sets[bits].add(sgr);
+                }
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Fill the buffer with blank cells
+     */
+    void clear()
+    {
+        Arrays.fill(codes, BLANK);
+    }
+
+    /**
+     * Make every cell differ from any real cell, so the next flush against
+     * this buffer repaints the whole screen.
+     */
+    void invalidate()
+    {
+        Arrays.fill(codes, INVALID);
+    }
+
+    /**
+     * Set a cell from a {@link CharacterPalette} code, which must not be transparent.
+     */
+    void set(int x, int y, long code)
+    {
+        codes[y * width + x] = code;
+    }
+
+    /**
+     * Set a row of cells from {@link CharacterPalette} codes, none of which may be transparent.
+     */
+    void set(int x, int y, long[] codes, int offset, int length)
+    {
+        System.arraycopy(codes, offset, this.codes, y * width + x, length);
+    }
+
+    void set(int x, int y, TextCharacter character)
+    {
+        set(x, y, CharacterPalette.code(character.getCharacter(), attr(character)));
+    }
+
+    void erase(int x, int y)
+    {
+        set(x, y, BLANK);
+    }
+
+    /**
+     * Write every cell of this buffer that differs from the front buffer to
+     * the screen, then copy it into the front buffer. Only the screen's own
+     * buffer is written, what reaches the terminal is up to the screen when
+     * it is refreshed.
+     *
+     * @param front  what is currently on the screen, must be the same size
+     * @param screen where to write the changed cells
+     * @return the number of cells written
+     */
+    int flush(CellBuffer front, Screen screen)
+    {
+        int written = 0;
+        long[] shown = front.codes;
+
+        for (int y = 0; y < height; y++)
+        {
+            int row = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                long code = codes[row + x];
+                if (code != shown[row + x])
+                {
+                    screen.setCharacter(x, y, CharacterPalette.character(code));
+                    written++;
+                }
+            }
+        }
+
+        System.arraycopy(codes, 0, shown, 0, width * height);
+
+        return written;
+    }
+}
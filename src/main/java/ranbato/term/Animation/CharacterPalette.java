@@ -0,0 +1,250 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.SGR;
+import com.googlecode.lanterna.TextCharacter;
+import com.googlecode.lanterna.TextColor;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canonical {@link TextCharacter} instances, one per combination of
+ * character, colors and modifiers, and the packed cell codes sprites are
+ * stored as.
+ * <p>
+ * A cell code is a long laid out as
+ * <pre>
+ *   bits  0-15  the character
+ *   bits 16-40  the attribute word used by {@link CellBuffer} (colors and SGR bits, including bold)
+ *   bits 41-61  the id of the canonical TextCharacter
+ *   bit  62     set for palette cells, see {@link #PALETTE}
+ *   bit  63     set for transparent cells, see {@link #TRANSPARENT}
+ * </pre>
+ * so the cell buffer can hold the codes as they are, and writing a cell to
+ * a Lanterna screen only needs an array lookup to find the TextCharacter. TextCharacter is immutable, so every
+ * sprite shares the same instances.
+ * <p>
+ * A palette cell is drawn in whatever color its entity gives the cell's
+ * palette slot, so it holds the slot number where the attributes would be
+ * and has no id. It has to be resolved with {@link #resolve} before it is
+ * drawn.
+ */
+final class CharacterPalette
+{
+    /**
+     * The code of a transparent cell. All codes with the top bit set are transparent.
+     */
+    static final long TRANSPARENT = Long.MIN_VALUE;
+
+    /**
+     * Set in the code of a palette cell.
+     */
+    static final long PALETTE = 1L << 62;
+
+    /**
+     * Palette slots are numbered 1-9, like the digits in a color mask. Slot 0 isn't used.
+     */
+    static final int PALETTE_SLOTS = 10;
+
+    private static final int ATTR_SHIFT = 16;
+    private static final int ATTR_MASK = (1 << 25) - 1;
+    private static final int ID_SHIFT = 41;
+    private static final int ID_MASK = (1 << 21) - 1;
+    private static final int MAX_CHARACTERS = 1 << 21;
+
+    private static final int ASCII = 128;
+
+    // attribute word -> codes of the ASCII characters with those attributes, TRANSPARENT until created
+    private static final Map<Integer, long[]> ascii = new HashMap<>();
+    // attribute word << 16 | character -> id of a non-ASCII character
+    private static final Map<Long, Integer> other = new HashMap<>();
+
+    // canonical characters by id, replaced whenever a character is added
+    private static volatile TextCharacter[] characters = new TextCharacter[256];
+    private static int size = 0;
+
+    private CharacterPalette()
+    {
+    }
+
+    /**
+     * Returns the code for a character in a foreground, background and
+     * optional bold.
+     *
+     * @param character
+     * @param foreground
+     * @param background
+     * @param bold
+     * @return
+     */
+    static long code(char character, TextColor foreground, TextColor background, boolean bold)
+    {
+        return code(character, CellBuffer.attr(ColorIndex.indexOf(foreground), ColorIndex.indexOf(background),
+                bold ? 1 << SGR.BOLD.ordinal() : 0));
+    }
+
+    /**
+     * Returns the code for a character with a packed attribute word.
+     *
+     * @param character
+     * @param attr see {@link CellBuffer}
+     * @return
+     */
+    static synchronized long code(char character, int attr)
+    {
+        if (character < ASCII)
+        {
+            long[] table = table(attr);
+            if (table[character] == TRANSPARENT)
+            {
+                table[character] = pack(character, attr, create(character, attr));
+            }
+            return table[character];
+        }
+
+        long key = ((long) attr << 16) | character;
+        Integer existing = other.get(key);
+        if (existing == null)
+        {
+            existing = create(character, attr);
+            other.put(key, existing);
+        }
+        return pack(character, attr, existing);
+    }
+
+    /**
+     * Returns the table of codes of the ASCII characters with an attribute
+     * word, indexed by character. Codes not handed out yet are TRANSPARENT,
+     * and {@link #code(char, int)} fills them in. The table is shared, so
+     * it can be kept and read without locking.
+     *
+     * @param attr
+     * @return
+     */
+    static synchronized long[] table(int attr)
+    {
+        long[] table = ascii.get(attr);
+        if (table == null)
+        {
+            table = new long[ASCII];
+            Arrays.fill(table, TRANSPARENT);
+            ascii.put(attr, table);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the code of a palette cell.
+     *
+     * @param character
+     * @param slot      1-9
+     * @return
+     */
+    static long paletteCell(char character, int slot)
+    {
+        return PALETTE | ((long) slot << ATTR_SHIFT) | character;
+    }
+
+    static boolean isPaletteCell(long code)
+    {
+        return (code & (PALETTE | TRANSPARENT)) == PALETTE;
+    }
+
+    static int slotOf(long code)
+    {
+        return attrOf(code);
+    }
+
+    /**
+     * Returns the code to draw a palette cell with, given an entity's
+     * palette as attribute words and the matching ASCII code tables.
+     *
+     * @param code   a palette cell
+     * @param attrs  [slot] attribute word
+     * @param tables [slot] {@link #table(int)} of the attribute word
+     * @return
+     */
+    static long resolve(long code, int[] attrs, long[][] tables)
+    {
+        int slot = slotOf(code);
+        char character = charOf(code);
+        if (character < ASCII)
+        {
+            long resolved = tables[slot][character];
+            if (resolved != TRANSPARENT)
+            {
+                return resolved;
+            }
+        }
+        return code(character, attrs[slot]);
+    }
+
+    /**
+     * Returns the canonical character for a code. The code must not be transparent.
+     *
+     * @param code
+     * @return
+     */
+    static TextCharacter character(long code)
+    {
+        return characters[(int) (code >>> ID_SHIFT) & ID_MASK];
+    }
+
+    /**
+     * Returns the canonical character for a character with a packed attribute word.
+     *
+     * @param character
+     * @param attr
+     * @return
+     */
+    static TextCharacter get(char character, int attr)
+    {
+        return character(code(character, attr));
+    }
+
+    static char charOf(long code)
+    {
+        return (char) code;
+    }
+
+    static int attrOf(long code)
+    {
+        return (int) (code >>> ATTR_SHIFT) & ATTR_MASK;
+    }
+
+    /**
+     * Returns the number of distinct characters handed out.
+     *
+     * @return
+     */
+    static synchronized int size()
+    {
+        return size;
+    }
+
+    private static long pack(char character, int attr, int id)
+    {
+        return character | ((long) attr << ATTR_SHIFT) | ((long) id << ID_SHIFT);
+    }
+
+    private static int create(char character, int attr)
+    {
+        if (size == MAX_CHARACTERS)
+        {
+            throw new IllegalStateException("Too many distinct characters, only " + MAX_CHARACTERS + " are supported");
+        }
+        // the modifier sets in CellBuffer are shared, so give each character its own
+        EnumSet<SGR> modifiers = EnumSet.copyOf(CellBuffer.modifiers(attr));
+        TextCharacter[] current = characters;
+        if (size == current.length)
+        {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[size] = new TextCharacter(character, CellBuffer.foreground(attr), CellBuffer.background(attr), modifiers);
+        // publish after the slot is filled, so a reader holding the code always finds it
+        characters = current;
+        return size++;
+    }
+}
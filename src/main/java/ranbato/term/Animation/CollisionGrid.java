@@ -0,0 +1,188 @@
+package ranbato.term.Animation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Broad phase collision detection using a uniform grid laid over the
+ * terminal. Every physical entity is binned into the grid cells its bounding
+ * box covers, and only entities sharing a cell are tested against each other,
+ * so the cost grows with the number of nearby pairs rather than with the
+ * square of the number of physical entities.
+ * <p>
+ * Entities that are partly or entirely off the screen are clamped into the
+ * edge cells, which keeps the test exact. A pair sharing several cells is only
+ * tested in the cell containing the top left corner of their overlap, so each
+ * collision is reported once.
+ * <p>
+ * The grid is rebuilt from scratch on every call, using flat int arrays that
+ * are reused between calls.
+ */
+class CollisionGrid
+{
+    private final int cellWidth;
+    private final int cellHeight;
+    private int columns;
+    private int rows;
+
+    // bounds of the entities being tested, in cells
+    private int[] minCol = new int[0];
+    private int[] maxCol = new int[0];
+    private int[] minRow = new int[0];
+    private int[] maxRow = new int[0];
+
+    // entity indices binned by cell, cellStart[c] .. cellStart[c+1] index into items
+    private int[] cellStart = new int[1];
+    private int[] items = new int[0];
+
+    CollisionGrid(int cellWidth, int cellHeight)
+    {
+        if (cellWidth < 1 || cellHeight < 1)
+        {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellWidth + "x" + cellHeight);
+        }
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+    }
+
+    /**
+     * Size the grid to cover a screen of the given dimensions.
+     *
+     * @param width  screen columns
+     * @param height screen rows
+     */
+    void resize(int width, int height)
+    {
+        int newColumns = Math.max(1, (width + cellWidth - 1) / cellWidth);
+        int newRows = Math.max(1, (height + cellHeight - 1) / cellHeight);
+        if (newColumns != columns || newRows != rows)
+        {
+            columns = newColumns;
+            rows = newRows;
+            cellStart = new int[columns * rows + 1];
+        }
+    }
+
+    /**
+     * Find every pair of colliding entities in the list, and add each entity of
+     * a pair to the collision list of the other.
+     *
+     * @param physical the physical entities to test
+     * @return the number of collisions found
+     */
+    int findCollisions(List<Entity> physical)
+    {
+        int count = physical.size();
+        if (minCol.length < count)
+        {
+            int length = Math.max(count, minCol.length * 2);
+            minCol = new int[length];
+            maxCol = new int[length];
+            minRow = new int[length];
+            maxRow = new int[length];
+        }
+
+        // work out which cells each entity covers, and count the entries per cell
+        Arrays.fill(cellStart, 0);
+        int entries = 0;
+        for (int i = 0; i < count; i++)
+        {
+            Entity ent = physical.get(i);
+            minCol[i] = column(ent.getX());
+            maxCol[i] = column(ent.getX() + ent.getWidth() - 1);
+            minRow[i] = row(ent.getY());
+            maxRow[i] = row(ent.getY() + ent.getHeight() - 1);
+            for (int r = minRow[i]; r <= maxRow[i]; r++)
+            {
+                for (int c = minCol[i]; c <= maxCol[i]; c++)
+                {
+                    cellStart[r * columns + c + 1]++;
+                    entries++;
+                }
+            }
+        }
+
+        // prefix sum into starting offsets, then fill the cells
+        for (int c = 1; c < cellStart.length; c++)
+        {
+            cellStart[c] += cellStart[c - 1];
+        }
+        if (items.length < entries)
+        {
+            items = new int[Math.max(entries, items.length * 2)];
+        }
+        for (int i = 0; i < count; i++)
+        {
+            for (int r = minRow[i]; r <= maxRow[i]; r++)
+            {
+                for (int c = minCol[i]; c <= maxCol[i]; c++)
+                {
+                    // cellStart[cell] is used as the fill cursor, and ends up at the start of the next cell
+                    items[cellStart[r * columns + c]++] = i;
+                }
+            }
+        }
+        // shift the cursors back so cellStart[cell] is the start of the cell again
+        System.arraycopy(cellStart, 0, cellStart, 1, cellStart.length - 1);
+        cellStart[0] = 0;
+
+        int collisions = 0;
+        for (int r = 0; r < rows; r++)
+        {
+            for (int c = 0; c < columns; c++)
+            {
+                int cell = r * columns + c;
+                int end = cellStart[cell + 1];
+                for (int a = cellStart[cell]; a < end; a++)
+                {
+                    int i = items[a];
+                    for (int b = a + 1; b < end; b++)
+                    {
+                        int j = items[b];
+                        // only test the pair in the cell where their overlap starts
+                        if (Math.max(minCol[i], minCol[j]) != c || Math.max(minRow[i], minRow[j]) != r)
+                        {
+                            continue;
+                        }
+                        Entity ei = physical.get(i);
+                        Entity ej = physical.get(j);
+                        if (overlaps(ei, ej))
+                        {
+                            ei.getCollisions().add(ej);
+                            ej.getCollisions().add(ei);
+                            collisions++;
+                        }
+                    }
+                }
+            }
+        }
+        return collisions;
+    }
+
+    private int column(int x)
+    {
+        return Math.min(Math.max(x, 0) / cellWidth, columns - 1);
+    }
+
+    private int row(int y)
+    {
+        return Math.min(Math.max(y, 0) / cellHeight, rows - 1);
+    }
+
+    /**
+     * The exact test, entities collide when their boxes overlap in X and Y,
+     * and their depth ranges overlap in Z.
+     */
+    static boolean overlaps(Entity a, Entity b)
+    {
+        return overlaps(a.getX(), a.getWidth(), b.getX(), b.getWidth())
+                && overlaps(a.getY(), a.getHeight(), b.getY(), b.getHeight())
+                && overlaps(a.getZ(), a.getDepth(), b.getZ(), b.getDepth());
+    }
+
+    private static boolean overlaps(int start1, int length1, int start2, int length2)
+    {
+        return (start1 <= start2 && start2 < start1 + length1) ||
+                (start2 <= start1 && start1 < start2 + length2);
+    }
+}
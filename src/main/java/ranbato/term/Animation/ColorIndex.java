@@ -0,0 +1,71 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextColor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns a small integer index to every color used by the animation, so
+ * colors can be packed into primitive cell attributes. The ANSI colors
+ * always have their ordinal as index, anything else (indexed or RGB colors)
+ * is given the next free slot the first time it is seen.
+ */
+final class ColorIndex
+{
+    /**
+     * Colors are packed into 8 bits
+     */
+    static final int MAX_COLORS = 256;
+
+    private static final Map<TextColor, Integer> indices = new HashMap<>(32);
+    private static volatile TextColor[] colors = new TextColor[0];
+
+    static
+    {
+        for (TextColor.ANSI color : TextColor.ANSI.values())
+        {
+            indexOf(color);
+        }
+    }
+
+    private ColorIndex()
+    {
+    }
+
+    /**
+     * Returns the index of a color, registering it if it hasn't been seen before.
+     *
+     * @param color
+     * @return
+     */
+    static synchronized int indexOf(TextColor color)
+    {
+        Integer index = indices.get(color);
+        if (index != null)
+        {
+            return index;
+        }
+        if (colors.length == MAX_COLORS)
+        {
+            throw new IllegalStateException("Too many distinct colors, only " + MAX_COLORS + " are supported");
+        }
+        TextColor[] grown = Arrays.copyOf(colors, colors.length + 1);
+        grown[colors.length] = color;
+        indices.put(color, colors.length);
+        colors = grown;
+        return grown.length - 1;
+    }
+
+    /**
+     * Returns the color registered at an index.
+     *
+     * @param index
+     * @return
+     */
+    static TextColor colorOf(int index)
+    {
+        return colors[index];
+    }
+}
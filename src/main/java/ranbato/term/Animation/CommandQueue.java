@@ -0,0 +1,90 @@
+package ranbato.term.Animation;
+
+import java.util.Arrays;
+
+/**
+ * Changes to an {@link Animation} made by callbacks while they run in
+ * parallel. Each chunk of entities updated in parallel records into its own
+ * queue, and the queues are replayed one after another in chunk order once
+ * every chunk has finished, so the result is the same whichever thread ran
+ * which chunk, and the same as running the chunks one at a time.
+ */
+class CommandQueue
+{
+    static final byte ADD = 0;
+    static final byte DELETE = 1;
+    static final byte DEPTH_CHANGED = 2;
+    static final byte PHYSICAL_CHANGED = 3;
+    static final byte TIMERS_CHANGED = 4;
+    static final byte FOLLOW_CHANGED = 5;
+
+    private byte[] ops = new byte[16];
+    private Entity[] targets = new Entity[16];
+    private int size = 0;
+
+    void add(byte op, Entity entity)
+    {
+        if (size == ops.length)
+        {
+            ops = Arrays.copyOf(ops, size * 2);
+            targets = Arrays.copyOf(targets, size * 2);
+        }
+        ops[size] = op;
+        targets[size] = entity;
+        size++;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Apply the queued changes to the animation in the order they were made,
+     * and empty the queue.
+     *
+     * @param animation
+     */
+    void replay(Animation animation)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            Entity entity = targets[i];
+            switch (ops[i])
+            {
+                case ADD:
+                    animation.add_entity(entity);
+                    break;
+                case DELETE:
+                    animation.del_entity(entity);
+                    break;
+                case DEPTH_CHANGED:
+                    if (entity.animation == animation)
+                    {
+                        animation.depth_changed(entity);
+                    }
+                    break;
+                case PHYSICAL_CHANGED:
+                    if (entity.animation == animation)
+                    {
+                        animation.update_physical(entity);
+                    }
+                    break;
+                case TIMERS_CHANGED:
+                    if (entity.animation == animation)
+                    {
+                        animation.timers_changed(entity);
+                    }
+                    break;
+                case FOLLOW_CHANGED:
+                    if (entity.animation == animation)
+                    {
+                        animation.follow_changed(entity);
+                    }
+                    break;
+            }
+        }
+        Arrays.fill(targets, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,242 @@
+package ranbato.term.Animation;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Entity store indexed by Z depth. There is one bucket per depth value, each
+ * bucket is an intrusive doubly linked list threaded through the entities
+ * themselves, so inserting, removing and changing the depth of an entity are
+ * all O(1) and never allocate. Iterating goes from the deepest bucket to the
+ * shallowest, which is the order entities have to be drawn in, so there is
+ * no need to sort anything per frame.
+ * <p>
+ * The bucket array covers the range of depths seen so far and grows in either
+ * direction as needed. Depths are small integers in practice (see TermTest.Depth).
+ */
+class DepthBuckets implements Iterable<Entity>
+{
+    private Entity[] heads;
+    private Entity[] tails;
+    // depth of bucket 0
+    private int minDepth;
+    private int size = 0;
+
+    DepthBuckets()
+    {
+        this(0, 32);
+    }
+
+    DepthBuckets(int minDepth, int buckets)
+    {
+        this.minDepth = minDepth;
+        heads = new Entity[buckets];
+        tails = new Entity[buckets];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Add an entity at its current depth. The entity must not already be in a store.
+     *
+     * @param entity
+     */
+    void add(Entity entity)
+    {
+        int bucket = bucketFor(entity.getZ());
+        link(entity, bucket);
+        size++;
+    }
+
+    /**
+     * Remove an entity from the store.
+     *
+     * @param entity
+     */
+    void remove(Entity entity)
+    {
+        unlink(entity);
+        size--;
+    }
+
+    /**
+     * Move an entity to the bucket for its new depth. Call this after the Z of
+     * an entity in the store has changed.
+     *
+     * @param entity
+     */
+    void depthChanged(Entity entity)
+    {
+        int bucket = bucketFor(entity.getZ());
+        if (bucket != entity.depthBucket)
+        {
+            unlink(entity);
+            link(entity, bucket);
+        }
+    }
+
+    void clear()
+    {
+        for (Entity entity = first(); entity != null; )
+        {
+            Entity next = next(entity);
+            entity.depthPrev = null;
+            entity.depthNext = null;
+            entity = next;
+        }
+        Arrays.fill(heads, null);
+        Arrays.fill(tails, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the first entity in draw order (the deepest one), or null if empty.
+     *
+     * @return
+     */
+    Entity first()
+    {
+        return firstFrom(heads.length - 1);
+    }
+
+    /**
+     * Returns the entity drawn after the given one, or null if it is the last.
+     *
+     * @param entity
+     * @return
+     */
+    Entity next(Entity entity)
+    {
+        if (entity.depthNext != null)
+        {
+            return entity.depthNext;
+        }
+        return firstFrom(entity.depthBucket - 1);
+    }
+
+    private Entity firstFrom(int bucket)
+    {
+        for (int b = bucket; b >= 0; b--)
+        {
+            if (heads[b] != null)
+            {
+                return heads[b];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<Entity> iterator()
+    {
+        return new Iterator<Entity>()
+        {
+            private Entity next = first();
+
+            @Override
+            public boolean hasNext()
+            {
+                return next != null;
+            }
+
+            @Override
+            public Entity next()
+            {
+                if (next == null)
+                {
+                    throw new NoSuchElementException();
+                }
+                Entity current = next;
+                next = DepthBuckets.this.next(current);
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Returns the bucket index for a depth, growing the bucket array if the
+     * depth is outside of the range covered so far.
+     */
+    private int bucketFor(int depth)
+    {
+        int bucket = depth - minDepth;
+        if (bucket < 0)
+        {
+            int grow = Math.max(-bucket, heads.length / 2);
+            heads = shift(heads, grow);
+            tails = shift(tails, grow);
+            minDepth -= grow;
+            // every linked entity's bucket index moves up by the same amount
+            for (int b = grow; b < heads.length; b++)
+            {
+                for (Entity entity = heads[b]; entity != null; entity = entity.depthNext)
+                {
+                    entity.depthBucket = b;
+                }
+            }
+            bucket = depth - minDepth;
+        }
+        else if (bucket >= heads.length)
+        {
+            int length = Math.max(bucket + 1, heads.length * 2);
+            heads = Arrays.copyOf(heads, length);
+            tails = Arrays.copyOf(tails, length);
+        }
+        return bucket;
+    }
+
+    private static Entity[] shift(Entity[] buckets, int by)
+    {
+        Entity[] shifted = new Entity[buckets.length + by];
+        System.arraycopy(buckets, 0, shifted, by, buckets.length);
+        return shifted;
+    }
+
+    private void link(Entity entity, int bucket)
+    {
+        entity.depthBucket = bucket;
+        entity.depthNext = null;
+        entity.depthPrev = tails[bucket];
+        if (tails[bucket] != null)
+        {
+            tails[bucket].depthNext = entity;
+        }
+        else
+        {
+            heads[bucket] = entity;
+        }
+        tails[bucket] = entity;
+    }
+
+    private void unlink(Entity entity)
+    {
+        int bucket = entity.depthBucket;
+        if (entity.depthPrev != null)
+        {
+            entity.depthPrev.depthNext = entity.depthNext;
+        }
+        else
+        {
+            heads[bucket] = entity.depthNext;
+        }
+        if (entity.depthNext != null)
+        {
+            entity.depthNext.depthPrev = entity.depthPrev;
+        }
+        else
+        {
+            tails[bucket] = entity.depthPrev;
+        }
+        entity.depthPrev = null;
+        entity.depthNext = null;
+    }
+}
@@ -1,14 +1,14 @@
 package ranbato.term.Animation;
 
 import com.googlecode.lanterna.SGR;
-import com.googlecode.lanterna.TextCharacter;
 import com.googlecode.lanterna.TextColor;
 
 import java.lang.invoke.MethodHandle;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 import org.slf4j.*;
@@ -134,36 +134,122 @@ public class Entity
 
     static final private Logger logger = LoggerFactory.getLogger(Entity.class);
 
+    /**
+     * The default callback, used for entities that have callback args but no callback of their own
+     */
+    public static final BiConsumer<Entity, Animation> MOVE_ENTITY = Entity::move_entity;
+
     private String name;
-    //    private Animation animation;
-    // default to single asterisk
-    private char[][][] shape = new char[][][]{{{'*'}}};
-    private char[][][] colorMask;
-    private String originalMask;
-    private TextCharacter[][][] drawCache;
+    Animation animation;
+    // the compiled sprite, possibly shared with other entities, and what it was compiled from
+    private Sprite sprite;
+    private String[] shapeSource;
+    private String maskSource;
     private int width, height;
     // appearance
     private char transparent = '?';
     private boolean auto_trans = false;
-    private int x, y, z;
+    // positions keep their fractional part, and are only rounded down
+    // to a cell when the entity is drawn or tested for collisions
+    private float x, y, z;
     private TextColor default_color = TextColor.ANSI.WHITE;
     private TextColor background_color = TextColor.ANSI.BLACK;
+    // colors of the palette slots in the color mask, [slot], null for the default color
+    private TextColor[] palette;
+    // bit per slot, set for bold
+    private int paletteBold;
+    // the palette as attribute words and code tables for drawing, rebuilt when it changes
+    private int[] paletteAttrs;
+    private long[][] paletteTables;
+    private boolean paletteDirty = true;
 
     // collision detection
     private int depth;
     private boolean physical;
+    private BiConsumer<Entity, Animation> coll_handler;
     private AnimationPath callback_args;
 
     // behavior
+    private BiConsumer<Entity, Animation> callback;
     private boolean wrap = false;
     private Entity follow_entity;
-    private int follow_offset;
+    private int[] follow_offset;
 
     // state
     private int curr_frame = 0;
+    // the frame including any fractional progress towards the next one
+    private float frame_pos = 0;
+
+    // where this entity was last drawn, used by the incremental renderer
+    boolean drawn = false;
+    int drawnX, drawnY, drawnZ, drawnWidth, drawnHeight, drawnFrame;
+    // the sprite or palette changed since it was last drawn
+    boolean restyled = false;
+
+    // position in the animation's list of physical entities, -1 if not in it
+    int physicalIndex = -1;
+
+    // queued for deletion by the animation
+    boolean dying = false;
+
+    // die_time and die_frame scheduled in the animation's timing wheels
+    ScheduledTask dieTimeTask, dieFrameTask;
+
+    // links for the depth bucket this entity is stored in
+    Entity depthPrev, depthNext;
+    int depthBucket;
+
+    // the builder this entity goes back to the animation's pool under when it dies, null if it isn't pooled
+    Builder pool;
+
+    // handle in the animation's slot map, 0 when not in an animation
+    long handle;
+
+    // position in the animation's list of followers, -1 if not in it
+    int followerIndex = -1;
+    // marks this entity while the animation works out the order to move followers in
+    int followMark;
 
     private Entity(Builder builder)
     {
+        init(builder);
+    }
+
+    /**
+     * Set up a dead pooled entity again from a builder, as if it had just
+     * been built. The sprite is kept if the builder would give the same one,
+     * so reusing an entity allocates nothing.
+     *
+     * @param builder
+     */
+    void recycle(Builder builder)
+    {
+        curr_frame = 0;
+        frame_pos = 0;
+        collisions.clear();
+        init(builder);
+    }
+
+    /**
+     * Drop the references a dead pooled entity holds, so the pool doesn't
+     * keep other entities alive.
+     */
+    void release()
+    {
+        follow_entity = null;
+        die_entity = null;
+        collisions.clear();
+        data = null;
+    }
+
+    private void init(Builder builder)
+    {
+        boolean sameSprite = sprite != null && shapeSource == builder.shape && maskSource == builder.colorMask
+                && (builder.sprite == null || sprite == builder.sprite)
+                && transparent == builder.transparent && auto_trans == builder.auto_trans
+                && default_color.equals(builder.default_color)
+                && background_color.equals(builder.background_color);
+
         setName(builder.name);
         setTransparent(builder.transparent);
         auto_trans = builder.auto_trans;
@@ -174,12 +260,37 @@ public class Entity
         background_color = builder.background_color;
         setDepth(builder.depth);
         setPhysical(builder.physical);
-        callback_args = builder.callback_args;
+        setColl_handler(builder.coll_handler);
+        if (builder.callback_args == null)
+        {
+            callback_args = null;
+        }
+        else
+        {
+            // the path is shared, but each entity steps through it on its own,
+            // a pooled entity keeps its own step counter to reuse
+            if (callback_args == null || callback_args == builder.callback_args)
+            {
+                callback_args = new AnimationPath();
+            }
+            callback_args.copyFrom(builder.callback_args);
+        }
+        if (builder.callback != null)
+        {
+            setCallback(builder.callback);
+        }
+        else if (callback_args != null)
+        {
+            setCallback(MOVE_ENTITY);
+        }
         setWrap(builder.wrap);
         setFollow_entity(builder.follow_entity);
         setFollow_offset(builder.follow_offset);
 //        setCurr_frame(builder.curr_frame);
-        setCollisions(builder.collisions);
+        if (builder.collisions != null)
+        {
+            setCollisions(builder.collisions);
+        }
         setDie_offscreen(builder.die_offscreen);
         setDie_time(builder.die_time);
         setDie_frame(builder.die_frame);
@@ -187,12 +298,28 @@ public class Entity
         setDie_entity(builder.die_entity);
         setType(builder.type);
         setData(builder.data);
+        set_palette(builder.palette, builder.paletteBold);
 
         // Do these last
-        setShape(builder.shape);
-        if(builder.colorMask != null)
+        if (!sameSprite)
         {
-            build_mask(builder.colorMask);
+            shapeSource = builder.shape;
+            maskSource = builder.colorMask;
+            if (builder.sprite != null)
+            {
+                set_sprite(builder.sprite);
+                if (!default_color.equals(sprite.getDefault_color())
+                        || !background_color.equals(sprite.getBackground_color())
+                        || transparent != sprite.getTransparent())
+                {
+                    // recolored after withSprite, so it can't be shared
+                    build_sprite();
+                }
+            }
+            else
+            {
+                build_sprite();
+            }
         }
 
     }
@@ -240,14 +367,24 @@ public class Entity
         {
             this.path = path;
         }
+
+        /**
+         * Start at the same step of the same path as another.
+         */
+        void copyFrom(AnimationPath other)
+        {
+            frame = other.frame;
+            path = other.path;
+        }
     }
 
 
     public Entity(String name, String shape, String colorMask, String default_color)
     {
         this.name = name;
-        setShape(shape);
-        this.colorMask = build_mask(colorMask);
+        shapeSource = new String[]{shape};
+        maskSource = colorMask;
+        build_sprite();
     }
 
     /**
@@ -266,12 +403,14 @@ public class Entity
         this.collisions = collisions;
     }
 
-    private List<Entity> collisions = new LinkedList<>();
+    // cleared rather than replaced every cycle, so it keeps its capacity
+    private List<Entity> collisions = new ArrayList<>();
 
     // entity death
     private boolean die_offscreen = false;
     private Instant die_time;
-    private int die_frame;
+    // the animation counts this down, see getDie_frame()
+    int die_frame = -1;
     private Function<Object [],Entity> death_cb;
     private Entity die_entity;
 
@@ -279,10 +418,6 @@ public class Entity
     private String type;
     private String data;
 
-    public TextCharacter[][] getCurrentFrame()
-    {
-        return drawCache[curr_frame];
-    }
 
     public Entity entityBuilder()
     {
@@ -358,8 +493,10 @@ public class Entity
         if (new_physical != physical)
         {
             physical = new_physical;
-//			if(animation != null)) {
-//				animation = _update_physical(this);
+            if (animation != null)
+            {
+                animation.update_physical(this);
+            }
         }
     }
 
@@ -396,24 +533,65 @@ public class Entity
         this.name = name;
     }
 
+    /**
+     * Returns the compiled sprite. It may be shared with other entities.
+     *
+     * @return
+     */
+    public Sprite getSprite()
+    {
+        return sprite;
+    }
+
+    /**
+     * Returns the frames of the sprite. These may be shared with other
+     * entities and must not be modified, use {@link #setShape(char[][][])}.
+     *
+     * @return
+     */
     public char[][][] getShape()
     {
-        return shape;
+        return sprite.getShape();
     }
 
+    /**
+     * Replace the frames of the sprite, keeping the color mask.
+     *
+     * @param shape
+     */
     public void setShape(char[][][] shape)
     {
-        this.shape = shape;
+        shapeSource = null;
+        set_sprite(new Sprite(shape, sprite.getColorMask(), default_color, background_color, transparent));
+    }
+
+    /**
+     * Replace the frames of the sprite with new art, one string per frame,
+     * keeping the color mask.
+     *
+     * @param shape
+     */
+    public void setShape(String... shape)
+    {
+        shapeSource = shape;
+        build_sprite();
     }
 
+    /**
+     * Returns the color mask of the sprite. This may be shared with other
+     * entities and must not be modified, use {@link #setColorMask(char[][][])}.
+     *
+     * @return
+     */
     public char[][][] getColorMask()
     {
-        return colorMask;
+        return sprite.getColorMask();
     }
 
     public void setColorMask(char[][][] colorMask)
     {
-        this.colorMask = colorMask;
+        maskSource = null;
+        set_sprite(new Sprite(sprite.getShape(), colorMask, default_color, background_color, transparent));
     }
 
     public char getTransparent()
@@ -439,34 +617,87 @@ public class Entity
     }
 
 
+    /**
+     * Returns the column the entity is drawn at, which is its exact
+     * X position rounded down.
+     *
+     * @return
+     */
     public int getX()
+    {
+        return (int) Math.floor(x);
+    }
+
+    /**
+     * Returns the exact X position, including any fractional part.
+     *
+     * @return
+     */
+    public float getExactX()
     {
         return x;
     }
 
-    public void setX(int x)
+    public void setX(float x)
     {
         this.x = x;
     }
 
+    /**
+     * Returns the row the entity is drawn at, which is its exact
+     * Y position rounded down.
+     *
+     * @return
+     */
     public int getY()
+    {
+        return (int) Math.floor(y);
+    }
+
+    /**
+     * Returns the exact Y position, including any fractional part.
+     *
+     * @return
+     */
+    public float getExactY()
     {
         return y;
     }
 
-    public void setY(int y)
+    public void setY(float y)
     {
         this.y = y;
     }
 
+    /**
+     * Returns the depth the entity is drawn at, which is its exact
+     * Z position rounded down.
+     *
+     * @return
+     */
     public int getZ()
+    {
+        return (int) Math.floor(z);
+    }
+
+    /**
+     * Returns the exact Z position, including any fractional part.
+     *
+     * @return
+     */
+    public float getExactZ()
     {
         return z;
     }
 
-    public void setZ(int z)
+    public void setZ(float z)
     {
+        int old = getZ();
         this.z = z;
+        if (animation != null && old != getZ())
+        {
+            animation.depth_changed(this);
+        }
     }
 
     public String getDefault_color()
@@ -477,7 +708,143 @@ public class Entity
     public void setDefault_color(String default_color)
     {
         this.default_color = TextColor.ANSI.valueOf(default_color);
-        build_mask();
+        build_sprite();
+    }
+
+    /**
+     * Set the colors of the palette slots, the digits 1-9 in the color mask,
+     * with color mask letters. The first letter is the color of slot 1, the
+     * second slot 2 and so on. Capitals are bold, as in a mask, and a space
+     * leaves a slot in the default color. This is the per-entity equivalent
+     * of asciiquarium's rand_color, which rewrites the digits in the mask:
+     * the sprite is shared and stays compiled, only the palette changes.
+     *
+     * @param colors
+     */
+    public void setPalette(String colors)
+    {
+        TextColor[] parsed = new TextColor[CharacterPalette.PALETTE_SLOTS];
+        int bold = parse_palette(colors, parsed);
+        set_palette(parsed, bold);
+    }
+
+    /**
+     * Set the colors of the palette slots, the digits 1-9 in the color mask.
+     * The first color is the color of slot 1, and so on. A null leaves a slot
+     * in the default color.
+     *
+     * @param colors
+     */
+    public void setPalette(TextColor... colors)
+    {
+        TextColor[] slots = new TextColor[CharacterPalette.PALETTE_SLOTS];
+        System.arraycopy(colors, 0, slots, 1, Math.min(colors.length, slots.length - 1));
+        set_palette(slots, 0);
+    }
+
+    /**
+     * Returns the color of a palette slot, or null if it is drawn in the
+     * default color.
+     *
+     * @param slot 1-9
+     * @return
+     */
+    public TextColor getPalette(int slot)
+    {
+        return palette == null ? null : palette[slot];
+    }
+
+    private void set_palette(TextColor[] colors, int bold)
+    {
+        if (colors == null)
+        {
+            if (palette != null)
+            {
+                Arrays.fill(palette, null);
+            }
+        }
+        else
+        {
+            if (palette == null)
+            {
+                palette = new TextColor[CharacterPalette.PALETTE_SLOTS];
+            }
+            System.arraycopy(colors, 0, palette, 0, palette.length);
+        }
+        paletteBold = bold;
+        paletteDirty = true;
+        restyled = true;
+    }
+
+    /**
+     * Returns the palette resolved to {@link CharacterPalette} code tables,
+     * one per slot. Slots without a color of their own get the default color.
+     *
+     * @return
+     */
+    long[][] palette_tables()
+    {
+        if (paletteDirty)
+        {
+            if (paletteTables == null)
+            {
+                paletteAttrs = new int[CharacterPalette.PALETTE_SLOTS];
+                paletteTables = new long[CharacterPalette.PALETTE_SLOTS][];
+            }
+            int background = ColorIndex.indexOf(background_color);
+            for (int slot = 1; slot < CharacterPalette.PALETTE_SLOTS; slot++)
+            {
+                TextColor color = palette != null && palette[slot] != null ? palette[slot] : default_color;
+                int sgr = (paletteBold & (1 << slot)) != 0 ? 1 << SGR.BOLD.ordinal() : 0;
+                paletteAttrs[slot] = CellBuffer.attr(ColorIndex.indexOf(color), background, sgr);
+                paletteTables[slot] = CharacterPalette.table(paletteAttrs[slot]);
+            }
+            paletteDirty = false;
+        }
+        return paletteTables;
+    }
+
+    /**
+     * Returns the palette resolved to attribute words, one per slot.
+     *
+     * @return
+     */
+    int[] palette_attrs()
+    {
+        palette_tables();
+        return paletteAttrs;
+    }
+
+    /**
+     * Parse color mask letters into palette slots.
+     *
+     * @param colors the letters, the first for slot 1
+     * @param slots  filled in with the colors
+     * @return the bold slots, a bit per slot
+     */
+    private static int parse_palette(String colors, TextColor[] slots)
+    {
+        int bold = 0;
+        for (int i = 0; i < colors.length() && i + 1 < slots.length; i++)
+        {
+            char letter = colors.charAt(i);
+            if (letter == ' ')
+            {
+                continue;
+            }
+            TextColor color = Animation.COLOR_MAP.get(String.valueOf(Character.toUpperCase(letter)));
+            if (color == null)
+            {
+                logger.error("Invalid palette color: '{}'", letter);
+                continue;
+            }
+            slots[i + 1] = color;
+            if (Character.isUpperCase(letter))
+            {
+                bold |= 1 << (i + 1);
+            }
+        }
+        return bold;
     }
 
     public int getDepth()
@@ -519,19 +886,92 @@ public class Entity
 
     public void setFollow_entity(Entity follow_entity)
     {
-        this.follow_entity = follow_entity;
+        if (follow_entity != this.follow_entity)
+        {
+            this.follow_entity = follow_entity;
+            if (animation != null)
+            {
+                animation.follow_changed(this);
+            }
+        }
     }
 
-    public int getFollow_offset()
+    public int[] getFollow_offset()
     {
         return follow_offset;
     }
 
-    public void setFollow_offset(int follow_offset)
+    /**
+     * Get or set the offsets from the entity being followed. Up to four
+     * values are used, the X, Y and Z offsets and the frame offset. Components
+     * beyond the end of the array are left alone.
+     *
+     * @param follow_offset
+     */
+    public void setFollow_offset(int... follow_offset)
     {
         this.follow_offset = follow_offset;
     }
 
+    /**
+     * Returns what the callback args move the entity by this cycle: dx, dy,
+     * dz and the frame speed, or the frame for a path. Null if it has none.
+     * This is shared and must not be modified.
+     *
+     * @return
+     */
+    public float[] getCallback_args()
+    {
+        return callback_args == null ? null : callback_args.getCurrentPath();
+    }
+
+    public BiConsumer<Entity, Animation> getCallback()
+    {
+        return callback;
+    }
+
+    /**
+     * Get or set the callback routine for the entity. It is called once per
+     * animation cycle with the entity and the animation, and should update
+     * the position and frame of the entity. Set to null for no callback.
+     *
+     * @param callback
+     */
+    public void setCallback(BiConsumer<Entity, Animation> callback)
+    {
+        this.callback = callback;
+    }
+
+    public BiConsumer<Entity, Animation> getColl_handler()
+    {
+        return coll_handler;
+    }
+
+    /**
+     * Get or set the routine called when this entity has collided with other
+     * entities during an animation cycle. The collisions are available from
+     * {@link #getCollisions()} while it runs.
+     *
+     * @param coll_handler
+     */
+    public void setColl_handler(BiConsumer<Entity, Animation> coll_handler)
+    {
+        this.coll_handler = coll_handler;
+    }
+
+    /**
+     * Remove this entity from the animation. This is equivalent to
+     * animation.del_entity(entity). The entity is not destroyed, so
+     * it can be added to an animation again later.
+     */
+    public void kill()
+    {
+        if (animation != null)
+        {
+            animation.del_entity(this);
+        }
+    }
+
     public int getCurr_frame()
     {
         return curr_frame;
@@ -540,12 +980,31 @@ public class Entity
     public void setCurr_frame(int curr_frame)
     {
 
-        if (curr_frame < 0 || curr_frame > shape.length - 1)
+        if (curr_frame < 0 || curr_frame > sprite.getFrameCount() - 1)
         {
             logger.error("Invalid frame number: {}", curr_frame);
             return;
         }
         this.curr_frame = curr_frame;
+        this.frame_pos = curr_frame;
+    }
+
+    /**
+     * Set the frame including fractional progress towards the next frame.
+     * The frame shown is the whole part.
+     *
+     * @param frame_pos
+     */
+    private void setFrame_pos(float frame_pos)
+    {
+        int frame = (int) frame_pos;
+        if (frame < 0 || frame > sprite.getFrameCount() - 1)
+        {
+            logger.error("Invalid frame number: {}", frame_pos);
+            return;
+        }
+        this.curr_frame = frame;
+        this.frame_pos = frame_pos;
     }
 
     public boolean isDie_offscreen()
@@ -575,23 +1034,36 @@ public class Entity
     public void setDie_time(Instant die_time)
     {
         this.die_time = die_time;
+        if (animation != null)
+        {
+            animation.timers_changed(this);
+        }
     }
 
     public int getDie_frame()
     {
+        // while it counts down in an animation, the animation knows how far it has got
+        if (animation != null && dieFrameTask != null && dieFrameTask.isPending())
+        {
+            return animation.frames_left(dieFrameTask);
+        }
         return die_frame;
     }
 
     /**
      * Get or set the frame number in which this entity
      * should die, counting from the time when die_frame
-     * is called. Set to -1 to disable.
+     * is called. Set to -1 to disable, which is the default.
      *
      * @param die_frame
      */
     public void setDie_frame(int die_frame)
     {
         this.die_frame = die_frame;
+        if (animation != null)
+        {
+            animation.timers_changed(this);
+        }
     }
 
     public Function<Object [],Entity> getDeath_cb()
@@ -663,6 +1135,65 @@ public class Entity
         return new Point3D(width, height, depth);
     }
 
+    /**
+     * Copies the X / Y / Z dimensions of the entity into a caller supplied
+     * point, to avoid allocating a new one.
+     *
+     * @param dest
+     * @return dest
+     */
+    public Point3D getSize(Point3D dest)
+    {
+        return dest.set(width, height, depth);
+    }
+
+    /**
+     * Returns the width (columns) of the entity.
+     *
+     * @return
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Returns the height (rows) of the entity.
+     *
+     * @return
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns true if the entity has moved, changed depth, changed frame or
+     * changed size since it was last drawn.
+     *
+     * @return
+     */
+    boolean isDrawnStateChanged()
+    {
+        return !drawn || restyled || drawnX != getX() || drawnY != getY() || drawnZ != getZ() || drawnFrame != curr_frame
+                || drawnWidth != width || drawnHeight != height;
+    }
+
+    /**
+     * Remember where the entity is being drawn this frame
+     */
+    void markDrawn()
+    {
+        drawn = true;
+        drawnX = getX();
+        drawnY = getY();
+        drawnZ = getZ();
+        drawnWidth = width;
+        drawnHeight = height;
+        drawnFrame = curr_frame;
+        restyled = false;
+    }
+
     /**
      * Gets or sets the X / Y / Z coordinates of the entity.
      * <p>
@@ -673,11 +1204,11 @@ public class Entity
      * @param y
      * @param z
      */
-    public void setPosition(int x, int y, int z)
+    public void setPosition(float x, float y, float z)
     {
         this.x = x;
         this.y = y;
-        this.z = z;
+        setZ(z);
     }
 
     /**
@@ -690,12 +1221,24 @@ public class Entity
     {
         this.x = point.getX();
         this.y = point.getY();
-        this.z = point.getZ();
+        setZ(point.getZ());
     }
 
     public Point3D getPosition()
     {
-        return new Point3D(x, y, z);
+        return new Point3D(getX(), getY(), getZ());
+    }
+
+    /**
+     * Copies the X / Y / Z coordinates of the entity into a caller supplied
+     * point, to avoid allocating a new one.
+     *
+     * @param dest
+     * @return dest
+     */
+    public Point3D getPosition(Point3D dest)
+    {
+        return dest.set(getX(), getY(), getZ());
     }
 
 
@@ -708,349 +1251,134 @@ public class Entity
 //
 
 
-//
-//=item I<animation>
-//
-//  $entity->animation( $anim );
-//  $anim = $entity->animation();
-//
-//Get or set the Term::Animation object that this entity is
-//part of.
-//
-//=cut
-//sub animation {
-//	my $self = shift;
-//	if(@_) { $self->{ANIMATION} = shift; }
-//	return $self->{ANIMATION};
-//}
-//
+    /**
+     * Get the Animation that this entity is part of, or null if it
+     * hasn't been added to one.
+     *
+     * @return
+     */
+    public Animation getAnimation()
+    {
+        return animation;
+    }
+
+    /**
+     * Get a handle to this entity in its animation, which can be kept instead
+     * of a reference to the entity. The animation resolves it with
+     * {@link Animation#entity(long)} for as long as the entity stays in the
+     * animation, and never afterwards, even if the entity is pooled and
+     * comes back. Returns 0 if the entity isn't in an animation.
+     *
+     * @return
+     */
+    public long getHandle()
+    {
+        return handle;
+    }
 
 
     /**
      * The default callback. You can also override and/or call this from your own
      * callback to do the work of moving and animating the entity
      * after you have done whatever other processing you want to do.
+     * <p>
+     * Unlike the Perl version, the new position and frame are written straight
+     * into the entity rather than returned, so this allocates nothing. Positions
+     * and the frame keep their fractional parts, so speeds below one cell or
+     * one frame per tick still make steady progress.
       */
-public int []  move_entity(Animation anim) {
+public void move_entity(Animation anim) {
+	if(callback_args == null) {
+		return;
+	}
 	float [] cb_args;
 	float f = 0;
+	boolean frameChanged = false;
 	// figure out if we just have a set of deltas, or if we have
 	// a full animation path to follow
 	if(callback_args.getFrame() != -1) {
 		cb_args = callback_args.getCurrentPath();
         callback_args.nextFrame();
 		f = cb_args[3];
+		frameChanged = true;
 	} else {
         cb_args = callback_args.getCurrentPath();
-		if(cb_args.length == 4) {
-			f = curr_frame + cb_args[3];
-			f = (float) ((f - Math.floor(f)) + (f % (shape.length) + 1));
+		if(cb_args.length == 4 && cb_args[3] != 0) {
+			f = frame_pos + cb_args[3];
+			f = wrap(f, sprite.getFrameCount());
+			frameChanged = true;
 		}
 	}
 
-	float x = (getX() + cb_args[0]);
-	float y = (getY() + cb_args[1]);
-	float z = (getZ() + cb_args[2]);
+	// keep the fractional part, so slow movement accumulates instead of being rounded away
+	float x = (this.x + cb_args[0]);
+	float y = (this.y + cb_args[1]);
+	float z = (this.z + cb_args[2]);
 
-	// @todo should this all be handled in the Animation class?
-	if(isWrap()) {
-		if(x >= anim.size.getColumns())  { x = (float) ((x - Math.floor(x)) + (x % anim.size.getColumns()));  }
-		else if(x < 0)            { x = (float)(x - Math.floor(x)) + (x % anim.size.getColumns());  }
-		if(y >= anim.size.getRows()) { y = (float)(y - Math.floor(y)) + (y % anim.size.getRows()); }
-		else if(y < 0)            { y = (float)(y - Math.floor(y)) + (y % anim.size.getRows()); }
+	this.x = x;
+	this.y = y;
+	setZ(z);
+	if(frameChanged) {
+		setFrame_pos(f);
 	}
-	return new int [] {Math.round(x), Math.round(y), Math.round(z), Math.round(f)};
 }
 
     /**
-     * Rebuild mask if something else changes, e.g. default_color
-     * @return
+     * Wrap the position of the entity back onto a screen of the given size.
+     * The animation does this after running the callback of a wrapping entity.
      */
-    private char[][][] build_mask(){
-        return build_mask(null);
-    }
-
-    /**
-     * create a color mask for an entity and update the drawcache
-     * @param shape mask shape string
-     * @return mask color array
-     */
-    private char[][][] build_mask(String shape)
+    void wrap_to(int columns, int rows)
     {
-
-
-        // store the color mask in case we are asked to
-        // change the default color later
-
-        char[][][] mask = new char[1][][];
-        if (shape != null)
-        {
-            originalMask = shape;
-            mask = build_shape(shape, false);
-        }
-        else if (originalMask != null)
-        {
-            shape = originalMask;
-            mask = build_shape(shape, false);
-        }
-        else
-        {
-            logger.error("mask and original are null ");
-            return null;
-        }
-
-        // make sure mask is same size as shape
-        int maskWidth = 0;
-        int maskHeight = 0;
-        for (int i = 0; i < mask.length; i++)
-        {
-            Point3D size = getFrameSize(mask[i]);
-            if (maskWidth <= size.getWidth())
-            {
-                maskWidth = size.getWidth();
-            }
-            if (maskHeight <= size.getHeight())
-            {
-                maskHeight = size.getHeight();
-            }
-        }
-        if (maskWidth > width || maskHeight > height)
-        {
-            logger.warn("Mask '{}' [{},{}] is larger than shape '{}'[{},{}]", shape, maskWidth, maskHeight, this.shape, width, height);
-        }
-        else if (maskWidth < width || maskHeight < height)
+        if (x >= columns || x < 0)
         {
-            // copy frames into larger
-            char[][][] newmask = new char[mask.length][height][];
-            for (int f = 0; f < mask.length; f++)
-            {
-                for (int i = 0; i < maskHeight; i++)
-                {
-                    newmask[f][i] = Arrays.copyOf(mask[f][i], width);
-                }
-            }
-            mask = newmask;
+            x = wrap(x, columns);
         }
-
-        // if we were given fewer mask frames
-        // than we have animation frames, then
-        // repeat what we got to make up the difference.
-        // this allows the user to pass a single color
-        // mask that is the same for every animation frame
-        if (mask.length < getShape().length)
+        if (y >= rows || y < 0)
         {
-            int diff = getShape().length - mask.length;
-            char[][][] newmask = Arrays.copyOf(mask, getShape().length);
-            for (int i = mask.length; i < getShape().length; i++)
-            {
-                newmask[i] = mask[i - 1];
-            }
-            mask = newmask;
+            y = wrap(y, rows);
         }
-
-        colorMask = mask;
-        updateDrawCache();
-
-
-        return mask;
-    }
-
-    private void updateDrawCache()
-    {
-        boolean transColor = false;
-
-        // update drawcache
-        drawCache = new TextCharacter[getShape().length][height][width];
-        for (int f = 0; f < drawCache.length; f++)
-        {
-            for (int i = 0; i < height; i++)
-            {
-                for (int j = 0; j < width; j++)
-                {
-
-                    if(i >= this.shape[f].length || j>= this.shape[f][i].length){
-                        // make this transparent?
-                        drawCache[f][i][j] = null;
-                        continue;
-                    }
-                    TextColor color = default_color;
-                    if (colorMask != null && colorMask[f][i][j] != ' ' && colorMask[f][i][j] != '\u0000')
-                    {
-                        // make sure it's a valid color
-                        color = Animation.COLOR_MAP.get(Character.toString(colorMask[f][i][j]).toUpperCase());
-                        if(color ==  null){
-                            if(colorMask[f][i][j] == transparent){
-                                // make this transparent
-                                drawCache[f][i][j] = null;
-                                continue;
-                            }
-                            else
-                            {
-                                logger.error("Invalid color mask: [{}][{}][{}]:'{}'", f, i, j, colorMask[f][i][j]);
-                                color = default_color;
-                            }
-                        }
-                    }
-                        // capital letters indicate bold colors
-
-                        if (colorMask != null && Character.isUpperCase(colorMask[f][i][j]))
-                        {
-                            drawCache[f][i][j] = new TextCharacter(this.shape[f][i][j], color, background_color, SGR.BOLD);
-                        }
-                        else
-                        {
-
-                            drawCache[f][i][j] = new TextCharacter(this.shape[f][i][j], color, background_color);
-                        }
-
-                    }
-                }
-            }
     }
 
-
     /**
-     * automatically make whitespace appearing on a line before the first non-
-     * whitespace character transparent
+     * Wrap a coordinate back onto the screen, keeping its fractional part.
+     * This is ($x - int($x)) + ($x % $width) from the Perl version, where
+     * int() truncates and % always returns a non-negative integer.
      */
-    private void auto_trans()
-    {
-
-        for (char[][] frame : shape)
-            for (char[] line : frame)
-            {
-                int index = 0;
-                while (Character.isWhitespace(line[index]))
-                {
-                    line[index] = transparent;
-                }
-            }
-    }
-
-    private void setShape(String myShape)
+    private static float wrap(float value, int limit)
     {
-        setShape(myShape,true);
-
+        int whole = (int) value;
+        return (value - whole) + Math.floorMod(whole, limit);
     }
 
-    private void setShape(String myShape, boolean setSize)
-    {
-        shape = build_shape(myShape, setSize);
-        if(auto_trans){
-            auto_trans();
-        }
-        updateDrawCache();
-
-    }
-
-
-
-
-    private void setShape(String[] myShape, boolean setSize){
-        shape = build_shape(myShape, setSize);
-        if(auto_trans){
-            auto_trans();
-        }
-        updateDrawCache();
-    }
     /**
-     * take one of 1) a string 2) an array of strings 3) an array of 2D arrays
-     * use these to generate a shape in the format we want (which is #3 above)
+     * Look up the compiled sprite for the shape and color mask, or rebuild it
+     * if something else changes, e.g. default_color
      */
-    private char[][][] build_shape(String myShape, boolean setSize)
-    {
-        String[] lines = myShape.split("\n");
-        char[][][] result = new char[1][][];
-        result[0] = build_frame(lines);
-        Point3D size = getFrameSize(result[0]);
-        if (setSize)
-        {
-            width = size.getWidth();
-            height = size.getHeight();
-        }
-
-        return result;
-    }
-
-    private void setShape(String[] myShape)
-    {
-        setShape(myShape, true);
-    }
-
-    private char[][][] build_shape(String[] myShape, boolean setSize)
-    {
-        char[][][] result = new char[myShape.length][][];
-        if (setSize)
-        {
-            width = 0;
-            height = 0;
-        }
-
-        for (int i = 0; i < myShape.length; i++)
-        {
-            String frame = myShape[i];
-            String[] lines = frame.split("\n");
-
-            result[i] = build_frame(lines);
-
-            if (setSize)
-            {
-                // update sizes
-                Point3D size = getFrameSize(result[i]);
-                if (width <= size.getWidth())
-                {
-                    width = size.getWidth();
-                }
-                if (height <= size.getHeight())
-                {
-                    height = size.getHeight();
-                }
-            }
-
-        }
-        return result;
-    }
-
-    private char[][] build_frame(String[] lines)
+    private void build_sprite()
     {
-        int size = lines.length;
-        if (size == 0)
+        if (shapeSource != null)
         {
-            // @todo log this, shouldn't happen
-            return new char[][]{{' '}};
+            set_sprite(SpriteCache.get(shapeSource, maskSource, default_color, background_color, transparent, auto_trans));
         }
-        int index = 0;
-
-        // strip an empty line from the top, for convenience???  I think this was for aesthetic purposes in the perl code.
-        if (lines[0] == null || lines[0].isEmpty())
-        {
-            index++;
-            size--;
-        }
-        char[][] data = new char[size][];
-        for (int i = 0; i < size; i++, index++)
+        else
         {
-            data[i] = lines[index].toCharArray();
+            // the frames were set directly, so there's nothing to look up
+            set_sprite(new Sprite(sprite.getShape(), sprite.getColorMask(), default_color, background_color, transparent));
         }
-
-        return data;
     }
 
-    private Point3D getFrameSize(char[][] frame)
+    private void set_sprite(Sprite sprite)
     {
-        int h = 0;
-        int w = 0;
-
-        Point3D size;
-        h = frame.length;
-        for (int i = 0; i < h; i++)
+        this.sprite = sprite;
+        restyled = true;
+        paletteDirty = true;
+        width = sprite.getWidth();
+        height = sprite.getHeight();
+        if (curr_frame >= sprite.getFrameCount())
         {
-            if (w < frame[i].length)
-            {
-                w = frame[i].length;
-            }
+            curr_frame = 0;
+            frame_pos = 0;
         }
-        return new Point3D(w, h);
     }
 
 
@@ -1065,21 +1393,26 @@ public int []  move_entity(Animation anim) {
         private TextColor default_color = TextColor.ANSI.WHITE;
         private TextColor background_color = TextColor.ANSI.BLACK;
         private String colorMask;
+        private Sprite sprite;
         private int depth = 1;
         private boolean physical = false;
+        private BiConsumer<Entity, Animation> coll_handler;
         private AnimationPath callback_args;
+        private BiConsumer<Entity, Animation> callback;
         private boolean wrap = false;
         private Entity follow_entity;
-        private int follow_offset;
+        private int[] follow_offset;
         private int curr_frame = 0;
         private List<Entity> collisions;
         private boolean die_offscreen;
         private Instant die_time;
-        private int die_frame;
+        private int die_frame = -1;
         private Function death_cb;
         private Entity die_entity;
         private String type;
         private String data;
+        private TextColor[] palette;
+        private int paletteBold;
 
         private Builder()
         {
@@ -1095,12 +1428,14 @@ public int []  move_entity(Animation anim) {
         public Builder withShape( String [] val)
         {
             shape = val;
+            sprite = null;
             return this;
         }
         
         public Builder withShape( String val)
         {
             shape = new String[]{val};
+            sprite = null;
             return this;
         }
 
@@ -1111,6 +1446,28 @@ public int []  move_entity(Animation anim) {
             return this;
         }
 
+        /**
+         * Use an already compiled sprite, e.g. one from a {@link SpriteBundle},
+         * instead of a shape and color mask. This also sets the default and
+         * background colors and the transparent character to the ones the
+         * sprite was compiled with. Changing them afterwards recompiles the
+         * sprite for each entity built, rather than sharing it.
+         *
+         * @param val
+         * @return
+         */
+        public Builder withSprite(Sprite val)
+        {
+            sprite = val;
+            shape = null;
+            colorMask = null;
+            default_color = val.getDefault_color();
+            background_color = val.getBackground_color();
+            transparent = val.getTransparent();
+            auto_trans = false;
+            return this;
+        }
+
 
         public Builder withTransparent(char val)
         {
@@ -1175,6 +1532,20 @@ public int []  move_entity(Animation anim) {
         }
 
 
+        public Builder withColl_handler( BiConsumer<Entity, Animation> val)
+        {
+            coll_handler = val;
+            return this;
+        }
+
+
+        public Builder withCallback( BiConsumer<Entity, Animation> val)
+        {
+            callback = val;
+            return this;
+        }
+
+
         public Builder withCallback_args( Entity.AnimationPath val)
         {
             callback_args = val;
@@ -1188,6 +1559,24 @@ public int []  move_entity(Animation anim) {
             return this;
         }
 
+        /**
+         * Follow a path rather than moving the same way every cycle. Each
+         * cycle the entity moves by the next step of the path, going back to
+         * the first after the last. A step is dx, dy, dz and the frame to show.
+         *
+         * @param start the step to start at
+         * @param path
+         * @return
+         */
+        public Builder withCallback_path(int start, float[][] path)
+        {
+            Entity.AnimationPath val = new Entity.AnimationPath();
+            val.setPath(path);
+            val.setFrame(start);
+            callback_args = val;
+            return this;
+        }
+
         
         public Builder withWrap(boolean val)
         {
@@ -1203,7 +1592,7 @@ public int []  move_entity(Animation anim) {
         }
 
         
-        public Builder withFollow_offset(int val)
+        public Builder withFollow_offset(int... val)
         {
             follow_offset = val;
             return this;
@@ -1272,6 +1661,27 @@ public int []  move_entity(Animation anim) {
             return this;
         }
 
+        /**
+         * See {@link Entity#setPalette(String)}
+         */
+        public Builder withPalette( String val)
+        {
+            palette = new TextColor[CharacterPalette.PALETTE_SLOTS];
+            paletteBold = parse_palette(val, palette);
+            return this;
+        }
+
+        /**
+         * See {@link Entity#setPalette(TextColor...)}
+         */
+        public Builder withPalette( TextColor... val)
+        {
+            palette = new TextColor[CharacterPalette.PALETTE_SLOTS];
+            System.arraycopy(val, 0, palette, 1, Math.min(val.length, palette.length - 1));
+            paletteBold = 0;
+            return this;
+        }
+
         public Builder withPosition (int x, int y, int z)
         {
             return withX(x).withY(y).withZ(z);
@@ -0,0 +1,138 @@
+package ranbato.term.Animation;
+
+import java.util.Arrays;
+
+/**
+ * Slot map giving each entity in an animation a handle that stays valid for
+ * as long as the entity is in the animation, and never refers to anything
+ * else afterwards. A handle is the entity's slot index in the low 32 bits and
+ * the slot's generation in the high 32 bits. Freeing a slot bumps its
+ * generation, so handles to the entity that was there stop resolving, even
+ * when the slot, or the entity itself from the pool, is used again.
+ * <p>
+ * Adding and removing are O(1): freed slots are kept on a stack and reused
+ * before the array grows. 0 is never a valid handle.
+ */
+final class EntitySlots
+{
+    private Entity[] entities = new Entity[64];
+    private int[] generations = new int[64];
+    private int[] free = new int[64];
+    private int freeCount = 0;
+    // slots below this have been used at some point
+    private int used = 0;
+    private int size = 0;
+
+    EntitySlots()
+    {
+        Arrays.fill(generations, 1);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Put an entity in a free slot, and set its handle.
+     *
+     * @param entity
+     */
+    void add(Entity entity)
+    {
+        int slot;
+        if (freeCount > 0)
+        {
+            slot = free[--freeCount];
+        }
+        else
+        {
+            if (used == entities.length)
+            {
+                int length = entities.length * 2;
+                entities = Arrays.copyOf(entities, length);
+                generations = Arrays.copyOf(generations, length);
+                Arrays.fill(generations, used, length, 1);
+            }
+            slot = used++;
+        }
+        entities[slot] = entity;
+        entity.handle = handle(slot, generations[slot]);
+        size++;
+    }
+
+    /**
+     * Free an entity's slot, and clear its handle.
+     *
+     * @param entity
+     */
+    void remove(Entity entity)
+    {
+        int slot = (int) entity.handle;
+        if (entity.handle == 0 || entities[slot] != entity)
+        {
+            return;
+        }
+        release(slot);
+        if (freeCount == free.length)
+        {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = slot;
+        size--;
+    }
+
+    /**
+     * Returns the entity a handle refers to, or null if it has left the animation.
+     *
+     * @param handle
+     * @return
+     */
+    Entity get(long handle)
+    {
+        int slot = (int) handle;
+        if (slot < 0 || slot >= used || generations[slot] != (int) (handle >>> 32))
+        {
+            return null;
+        }
+        return entities[slot];
+    }
+
+    /**
+     * Free every slot, O(slots used).
+     */
+    void clear()
+    {
+        freeCount = 0;
+        if (free.length < used)
+        {
+            free = new int[used];
+        }
+        // push them in reverse so the lowest slots are reused first
+        for (int slot = used - 1; slot >= 0; slot--)
+        {
+            if (entities[slot] != null)
+            {
+                release(slot);
+            }
+            free[freeCount++] = slot;
+        }
+        size = 0;
+    }
+
+    private void release(int slot)
+    {
+        entities[slot].handle = 0;
+        entities[slot] = null;
+        // skip 0 when the generation wraps, so no handle is ever 0
+        if (++generations[slot] == 0)
+        {
+            generations[slot] = 1;
+        }
+    }
+
+    private static long handle(int slot, int generation)
+    {
+        return ((long) generation << 32) | slot;
+    }
+}
@@ -0,0 +1,230 @@
+package ranbato.term.Animation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.function.LongConsumer;
+
+/**
+ * Runs an {@link Animation} as fast as it will go for a fixed number of
+ * ticks, for soak and load testing. Unlike {@link AnimationLoop} there is no
+ * timestep and no input, each tick runs straight after the last.
+ * <p>
+ * Usually the animation is created with {@link Animation#headless(int, int)},
+ * so it can run on machines without a TTY.
+ * <p>
+ * Heap use is measured after a full GC before and after the run, so the
+ * difference is a fair measure of what the animation kept hold of. While
+ * running, the heap and entity count are sampled every sampleEvery ticks
+ * to find their peaks.
+ */
+public class HeadlessRunner
+{
+    private final Animation animation;
+    private int renderEvery = 1;
+    private int sampleEvery = 1000;
+    private LongConsumer beforeTick;
+
+    public HeadlessRunner(Animation animation)
+    {
+        this.animation = animation;
+    }
+
+    public int getRenderEvery()
+    {
+        return renderEvery;
+    }
+
+    /**
+     * Draw a frame after every renderEvery ticks. Default: 1
+     *
+     * @param renderEvery
+     */
+    public void setRenderEvery(int renderEvery)
+    {
+        if (renderEvery < 1)
+        {
+            throw new IllegalArgumentException("renderEvery must be positive: " + renderEvery);
+        }
+        this.renderEvery = renderEvery;
+    }
+
+    public int getSampleEvery()
+    {
+        return sampleEvery;
+    }
+
+    /**
+     * Sample the heap and entity count after every sampleEvery ticks. Default: 1000
+     *
+     * @param sampleEvery
+     */
+    public void setSampleEvery(int sampleEvery)
+    {
+        if (sampleEvery < 1)
+        {
+            throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    public LongConsumer getBeforeTick()
+    {
+        return beforeTick;
+    }
+
+    /**
+     * Set a routine called before every tick with the animation's tick
+     * count, e.g. to feed in recorded input when replaying a run.
+     *
+     * @param beforeTick
+     */
+    public void setBeforeTick(LongConsumer beforeTick)
+    {
+        this.beforeTick = beforeTick;
+    }
+
+    /**
+     * Run the animation for a number of ticks.
+     *
+     * @param ticks
+     * @return what happened
+     */
+    public Report run(long ticks)
+    {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Report report = new Report();
+
+        System.gc();
+        report.heapStart = memory.getHeapMemoryUsage().getUsed();
+        report.heapPeak = report.heapStart;
+        report.entitiesStart = animation.entity_count();
+        report.entitiesPeak = report.entitiesStart;
+
+        long start = System.nanoTime();
+        for (long tick = 1; tick <= ticks; tick++)
+        {
+            if (beforeTick != null)
+            {
+                beforeTick.accept(animation.getTick());
+            }
+            animation.update();
+            report.ticks++;
+            if (tick % renderEvery == 0)
+            {
+                animation.render();
+                report.frames++;
+            }
+            if (tick % sampleEvery == 0)
+            {
+                report.heapPeak = Math.max(report.heapPeak, memory.getHeapMemoryUsage().getUsed());
+                report.entitiesPeak = Math.max(report.entitiesPeak, animation.entity_count());
+            }
+        }
+        report.nanos = System.nanoTime() - start;
+
+        report.entitiesEnd = animation.entity_count();
+        report.entitiesPeak = Math.max(report.entitiesPeak, report.entitiesEnd);
+        report.heapPeak = Math.max(report.heapPeak, memory.getHeapMemoryUsage().getUsed());
+        System.gc();
+        report.heapEnd = memory.getHeapMemoryUsage().getUsed();
+
+        return report;
+    }
+
+    /**
+     * The results of a run
+     */
+    public static class Report
+    {
+        private long ticks;
+        private long frames;
+        private long nanos;
+        private int entitiesStart;
+        private int entitiesEnd;
+        private int entitiesPeak;
+        private long heapStart;
+        private long heapEnd;
+        private long heapPeak;
+
+        public long getTicks()
+        {
+            return ticks;
+        }
+
+        public long getFrames()
+        {
+            return frames;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        public double getTicksPerSecond()
+        {
+            return nanos == 0 ? 0 : ticks * 1e9 / nanos;
+        }
+
+        public double getFramesPerSecond()
+        {
+            return nanos == 0 ? 0 : frames * 1e9 / nanos;
+        }
+
+        public int getEntitiesStart()
+        {
+            return entitiesStart;
+        }
+
+        public int getEntitiesEnd()
+        {
+            return entitiesEnd;
+        }
+
+        public int getEntitiesPeak()
+        {
+            return entitiesPeak;
+        }
+
+        /**
+         * Returns the heap in use after a GC before the run, in bytes.
+         *
+         * @return
+         */
+        public long getHeapStart()
+        {
+            return heapStart;
+        }
+
+        /**
+         * Returns the heap in use after a GC after the run, in bytes.
+         *
+         * @return
+         */
+        public long getHeapEnd()
+        {
+            return heapEnd;
+        }
+
+        /**
+         * Returns the most heap seen in use during the run, in bytes. This
+         * includes garbage, so it's only a rough guide.
+         *
+         * @return
+         */
+        public long getHeapPeak()
+        {
+            return heapPeak;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d ticks, %d frames in %.2fs: %.1f ticks/s, %.1f frames/s; " +
+                            "entities %d -> %d (peak %d); heap %dKB -> %dKB (peak %dKB)",
+                    ticks, frames, nanos / 1e9, getTicksPerSecond(), getFramesPerSecond(),
+                    entitiesStart, entitiesEnd, entitiesPeak,
+                    heapStart / 1024, heapEnd / 1024, heapPeak / 1024);
+        }
+    }
+}
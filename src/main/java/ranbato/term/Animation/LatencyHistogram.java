@@ -0,0 +1,149 @@
+package ranbato.term.Animation;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size log-linear histogram for recording durations, in the style of
+ * HdrHistogram. Values below 2^SUB_BUCKET_BITS are counted exactly, larger
+ * values are counted in buckets whose width doubles with every power of two,
+ * so every value is kept to within 1/2^(SUB_BUCKET_BITS-1) (about 1.5%) of
+ * its true magnitude. Recording is O(1) and never allocates.
+ * <p>
+ * Values are expected in nanoseconds, anything larger than
+ * {@link #MAX_VALUE} (about 18 minutes) is clamped.
+ */
+class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final long[] counts = new long[indexOf(MAX_VALUE) + 1];
+    private long totalCount = 0;
+    private long total = 0;
+    private long max = 0;
+
+    /**
+     * Record a single value.
+     *
+     * @param value
+     */
+    synchronized void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        else if (value > MAX_VALUE)
+        {
+            value = MAX_VALUE;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        total += value;
+        if (value > max)
+        {
+            max = value;
+        }
+    }
+
+    synchronized long getCount()
+    {
+        return totalCount;
+    }
+
+    synchronized long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     *
+     * @return
+     */
+    synchronized long getTotal()
+    {
+        return total;
+    }
+
+    synchronized double getMean()
+    {
+        return totalCount == 0 ? 0 : (double) total / totalCount;
+    }
+
+    /**
+     * Returns the value at a percentile, that is the largest value that
+     * percentile of the recorded values are less than or equal to, to within
+     * the precision of the histogram.
+     *
+     * @param percentile between 0 and 100
+     * @return
+     */
+    synchronized long getValueAtPercentile(double percentile)
+    {
+        if (totalCount == 0)
+        {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= target)
+            {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    synchronized void reset()
+    {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * Values below SUB_BUCKET_COUNT map to themselves. Above that, the value
+     * is shifted down until it has SUB_BUCKET_BITS significant bits. The top
+     * bit is then always set, so each shift gets its own run of
+     * SUB_BUCKET_COUNT / 2 buckets, one per value of the bits below it.
+     */
+    static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+        {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /**
+     * The smallest value counted in a bucket.
+     */
+    static long lowestEquivalentValue(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+        {
+            return index;
+        }
+        int shift = (index >>> (SUB_BUCKET_BITS - 1)) - 1;
+        long subBucket = index - ((long) shift << (SUB_BUCKET_BITS - 1));
+        return subBucket << shift;
+    }
+
+    /**
+     * The largest value counted in a bucket.
+     */
+    static long highestEquivalentValue(int index)
+    {
+        return lowestEquivalentValue(index + 1) - 1;
+    }
+}
@@ -43,4 +43,25 @@ public class Point3D
         this.y = y;
         this.z = z;
     }
+
+    public Point3D()
+    {
+    }
+
+    /**
+     * Overwrite the coordinates, so a single instance can be reused
+     * instead of allocating a new point for every query.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return this point
+     */
+    public Point3D set(int x, int y, int z)
+    {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
 }
@@ -0,0 +1,458 @@
+package ranbato.term.Animation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Sizes populations of entities, like the fish and seaweed in asciiquarium,
+ * by what a cycle of the animation costs. Each population has a base count,
+ * how many there would be at full density, usually worked out from the size
+ * of the screen. Every few cycles the controller reads the time the
+ * animation spent updating and drawing since it last looked from its
+ * {@link AnimationMetrics}, and
+ * <ul>
+ * <li>if a cycle cost more than the target, cuts the density by a factor</li>
+ * <li>if a cycle cost well under the target, raises the density by a step</li>
+ * </ul>
+ * Each population's target is then its base count times the density, which
+ * is handed to whatever keeps that many alive, e.g. a
+ * {@link SpawnerRegistry#setTarget(int)}. Populations shrink by not
+ * replacing what dies, so nothing vanishes from the screen.
+ * <p>
+ * Cycle costs are only measured while the animation is tracking its frame
+ * rate, until then the density stays where it is. The decisions can be read
+ * here, or over JMX once {@link #register(String)} has been called.
+ */
+public final class PopulationController implements PopulationControllerMXBean
+{
+    static private final Logger logger = LoggerFactory.getLogger(PopulationController.class);
+
+    /**
+     * A population, its limits set with the with methods after registering it
+     */
+    public static final class Population
+    {
+        private final String name;
+        private final IntSupplier base;
+        private final IntConsumer target;
+        private int min = 0;
+        private int current = -1;
+
+        private Population(String name, IntSupplier base, IntConsumer target)
+        {
+            this.name = name;
+            this.base = base;
+            this.target = target;
+        }
+
+        /**
+         * Set the fewest there can be, however slow the animation is. Default: 0
+         *
+         * @param val
+         * @return
+         */
+        public Population withMin(int val)
+        {
+            min = val;
+            return this;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns how many there would be at full density.
+         *
+         * @return
+         */
+        public int getBase()
+        {
+            return Math.max(base.getAsInt(), 0);
+        }
+
+        /**
+         * Returns how many there should be, as last handed on.
+         *
+         * @return
+         */
+        public int getTarget()
+        {
+            return current;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + current;
+        }
+    }
+
+    private static final int DEFAULT_INTERVAL_FRAMES = 20;
+    private static final double DEFAULT_MIN_DENSITY = .1;
+    private static final double DEFAULT_MAX_DENSITY = 1;
+    private static final double SHRINK_FACTOR = .8;
+    private static final double GROW_STEP = .05;
+    // grow only below this fraction of the target, so it doesn't flap around it
+    private static final double GROW_BELOW = .75;
+    // weight of the newest cost in the smoothed cost
+    private static final double SMOOTHING = .5;
+
+    private final List<Population> populations = new ArrayList<>();
+    private long targetNanos;
+    private int intervalFrames = DEFAULT_INTERVAL_FRAMES;
+    private double minDensity = DEFAULT_MIN_DENSITY;
+    private double maxDensity = DEFAULT_MAX_DENSITY;
+    private boolean enabled = true;
+
+    private volatile double density = DEFAULT_MAX_DENSITY;
+    private volatile double cost = -1;
+    private volatile long shrinks = 0;
+    private volatile long grows = 0;
+
+    // the metrics when the controller last looked
+    private long lastTotal;
+    private long lastTicks;
+
+    private Animation animation;
+    private ScheduledTask pending;
+    private final Consumer<Animation> control = this::control;
+    private ObjectName objectName;
+
+    /**
+     * @param targetNanos what an update and draw of the animation should cost, in nanoseconds
+     */
+    public PopulationController(long targetNanos)
+    {
+        setTargetNanos(targetNanos);
+    }
+
+    /**
+     * Add a population.
+     *
+     * @param name
+     * @param base   how many there would be at full density, asked for every time the targets are set
+     * @param target told how many there should be whenever that changes
+     * @return the population, to set its limits on
+     */
+    public Population register(String name, IntSupplier base, IntConsumer target)
+    {
+        Population added = new Population(name, base, target);
+        populations.add(added);
+        return added;
+    }
+
+    public List<Population> getPopulations()
+    {
+        return Collections.unmodifiableList(populations);
+    }
+
+    public long getTargetNanos()
+    {
+        return targetNanos;
+    }
+
+    public void setTargetNanos(long targetNanos)
+    {
+        if (targetNanos <= 0)
+        {
+            throw new IllegalArgumentException("targetNanos must be positive: " + targetNanos);
+        }
+        this.targetNanos = targetNanos;
+    }
+
+    public int getIntervalFrames()
+    {
+        return intervalFrames;
+    }
+
+    /**
+     * Set how many cycles to measure before each adjustment. Default: 20
+     *
+     * @param intervalFrames
+     */
+    public void setIntervalFrames(int intervalFrames)
+    {
+        if (intervalFrames < 1)
+        {
+            throw new IllegalArgumentException("intervalFrames must be positive: " + intervalFrames);
+        }
+        this.intervalFrames = intervalFrames;
+    }
+
+    /**
+     * Set the range the density is kept in. Default: 0.1 to 1
+     *
+     * @param min
+     * @param max
+     */
+    public void setDensityRange(double min, double max)
+    {
+        if (min < 0 || max < min)
+        {
+            throw new IllegalArgumentException("bad density range: " + min + " to " + max);
+        }
+        minDensity = min;
+        maxDensity = max;
+        density = Math.min(Math.max(density, min), max);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Set whether the density follows the cost of a cycle. When it doesn't,
+     * the targets are still set from the density it was left at, e.g. so a
+     * run on a tick clock spawns the same whatever the machine. Default: true
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Start sizing the populations in an animation. The targets are handed on
+     * straight away, at the density the controller was left at, and the
+     * first adjustment is made after intervalFrames cycles.
+     *
+     * @param animation
+     */
+    public void start(Animation animation)
+    {
+        stop();
+        this.animation = animation;
+        for (Population p : populations)
+        {
+            p.current = -1;
+        }
+        apply();
+        if (enabled)
+        {
+            baseline(animation.getMetrics());
+            pending = animation.scheduleFrames(intervalFrames, control);
+        }
+    }
+
+    /**
+     * Stop adjusting. The targets are left as they are.
+     */
+    public void stop()
+    {
+        if (pending != null)
+        {
+            animation.cancel(pending);
+            pending = null;
+        }
+        animation = null;
+    }
+
+    private void baseline(AnimationMetrics metrics)
+    {
+        lastTotal = total(metrics);
+        lastTicks = metrics.getTicks();
+    }
+
+    private static long total(AnimationMetrics metrics)
+    {
+        long total = 0;
+        for (AnimationMetrics.Phase phase : AnimationMetrics.Phase.values())
+        {
+            total += metrics.getTotalNanos(phase);
+        }
+        return total;
+    }
+
+    private void control(Animation animation)
+    {
+        pending = null;
+        if (animation != this.animation)
+        {
+            return;
+        }
+        pending = animation.scheduleFrames(intervalFrames, control);
+
+        AnimationMetrics metrics = animation.getMetrics();
+        long total = total(metrics);
+        long ticks = metrics.getTicks();
+        long spent = total - lastTotal;
+        long cycles = ticks - lastTicks;
+        lastTotal = total;
+        lastTicks = ticks;
+        // nothing measured, or the metrics were reset
+        if (cycles <= 0 || spent < 0)
+        {
+            return;
+        }
+
+        double sample = (double) spent / cycles;
+        cost = cost < 0 ? sample : cost + (sample - cost) * SMOOTHING;
+        double was = density;
+        if (cost > targetNanos)
+        {
+            density = Math.max(density * SHRINK_FACTOR, minDensity);
+        }
+        else if (cost < targetNanos * GROW_BELOW)
+        {
+            density = Math.min(density + GROW_STEP, maxDensity);
+        }
+        if (density < was)
+        {
+            shrinks++;
+        }
+        else if (density > was)
+        {
+            grows++;
+        }
+        else
+        {
+            return;
+        }
+        logger.debug("cycle cost {}us against a target of {}us, density {} -> {}",
+                String.format("%.1f", cost / 1000), targetNanos / 1000, String.format("%.2f", was), String.format("%.2f", density));
+        apply();
+    }
+
+    /**
+     * Hand on the targets again, e.g. after the screen size has changed the
+     * base counts.
+     */
+    public void refresh()
+    {
+        apply();
+    }
+
+    /**
+     * Hand on each population's target at the current density, if it has changed.
+     */
+    private void apply()
+    {
+        for (Population p : populations)
+        {
+            int target = Math.max((int) Math.round(p.getBase() * density), p.min);
+            if (target != p.current)
+            {
+                p.current = target;
+                p.target.accept(target);
+            }
+        }
+    }
+
+    /**
+     * Register this controller with the platform MBean server, under
+     * ranbato.term.Animation:type=PopulationController,name=<name>
+     *
+     * @param name
+     */
+    public synchronized void register(String name)
+    {
+        unregister();
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("ranbato.term.Animation:type=PopulationController,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (JMException e)
+        {
+            logger.error("Unable to register population controller '{}'", name, e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Remove this controller from the platform MBean server, if it was registered.
+     */
+    public synchronized void unregister()
+    {
+        if (objectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e)
+        {
+            logger.warn("Unable to unregister population controller '{}'", objectName, e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public double getDensity()
+    {
+        return density;
+    }
+
+    /**
+     * Returns the smoothed cost of a cycle, or a negative number if nothing
+     * has been measured yet.
+     *
+     * @return
+     */
+    @Override
+    public double getTickCostMicros()
+    {
+        return cost < 0 ? cost : cost / 1000;
+    }
+
+    @Override
+    public double getTargetMicros()
+    {
+        return targetNanos / 1000.0;
+    }
+
+    @Override
+    public void setTargetMicros(double micros)
+    {
+        setTargetNanos((long) (micros * TimeUnit.MICROSECONDS.toNanos(1)));
+    }
+
+    @Override
+    public long getShrinks()
+    {
+        return shrinks;
+    }
+
+    @Override
+    public long getGrows()
+    {
+        return grows;
+    }
+
+    @Override
+    public Map<String, Integer> getPopulationTargets()
+    {
+        Map<String, Integer> targets = new LinkedHashMap<>();
+        for (Population p : populations)
+        {
+            targets.put(p.name, p.current);
+        }
+        return targets;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("PopulationController density %.2f, cycle cost %.1fus of %.1fus, %d shrinks, %d grows, %s",
+                density, getTickCostMicros(), getTargetMicros(), shrinks, grows, populations);
+    }
+}
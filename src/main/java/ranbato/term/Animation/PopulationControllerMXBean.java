@@ -0,0 +1,23 @@
+package ranbato.term.Animation;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link PopulationController}. Times are in microseconds.
+ */
+public interface PopulationControllerMXBean
+{
+    double getDensity();
+
+    double getTickCostMicros();
+
+    double getTargetMicros();
+
+    void setTargetMicros(double micros);
+
+    long getShrinks();
+
+    long getGrows();
+
+    Map<String, Integer> getPopulationTargets();
+}
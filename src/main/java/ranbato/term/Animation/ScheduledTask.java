@@ -0,0 +1,36 @@
+package ranbato.term.Animation;
+
+import java.util.function.Consumer;
+
+/**
+ * Something an {@link Animation} will do at a set time or after a set number
+ * of cycles, see {@link Animation#schedule(java.time.Instant, Consumer)}.
+ * Tasks run at the start of the first animation cycle on or after the time
+ * they are due, before any callbacks. Entities' die_time and die_frame are
+ * scheduled the same way.
+ */
+public final class ScheduledTask
+{
+    final Consumer<Animation> action;
+
+    // the wheel the task is waiting in, null once it has run or been cancelled
+    TimingWheel wheel;
+    long deadline;
+    int list;
+    ScheduledTask prev, next;
+
+    ScheduledTask(Consumer<Animation> action)
+    {
+        this.action = action;
+    }
+
+    /**
+     * Returns true if the task hasn't run yet and hasn't been cancelled.
+     *
+     * @return
+     */
+    public boolean isPending()
+    {
+        return wheel != null;
+    }
+}
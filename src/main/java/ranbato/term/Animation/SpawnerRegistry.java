@@ -0,0 +1,402 @@
+package ranbato.term.Animation;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps a number of things picked at random from a set of species alive in
+ * an animation, like the random objects in asciiquarium: when one dies,
+ * another is picked and spawned to take its place. Each species has a
+ * factory that adds one to the animation, and
+ * <ul>
+ * <li>a weight, how likely it is to be picked compared to the others</li>
+ * <li>a max concurrent count, how many of it can be alive at once</li>
+ * <li>a cooldown, how long after one is spawned before another can be</li>
+ * <li>how many physical entities spawning one adds</li>
+ * </ul>
+ * A species is only picked if spawning it would keep the physical entities
+ * in the animation within the physical budget, so collision detection, and
+ * with it the frame time, stays bounded whatever gets picked. When nothing
+ * can be spawned the registry tries again later, at the end of the earliest
+ * cooldown or after a few cycles.
+ * <p>
+ * Spawns happen in scheduled tasks at the start of a cycle (see
+ * {@link Animation#scheduleFrames(int, Consumer)}), so they can't be made
+ * from callbacks running in parallel.
+ */
+public final class SpawnerRegistry
+{
+    /**
+     * Adds one of a species to an animation
+     */
+    @FunctionalInterface
+    public interface Factory
+    {
+        /**
+         * Add one to the animation.
+         *
+         * @param animation
+         * @return the entity, already added, whose death means it is gone
+         */
+        Entity spawn(Animation animation);
+    }
+
+    /**
+     * A species and its limits, set with the with methods after registering it
+     */
+    public static final class Species
+    {
+        private final String name;
+        private final Factory factory;
+        private double weight = 1;
+        private int maxConcurrent = Integer.MAX_VALUE;
+        private Duration cooldown = Duration.ZERO;
+        private int physical = 0;
+
+        // handles of the entities whose deaths end the live ones
+        private long[] live = new long[4];
+        private int liveCount = 0;
+        private Instant nextSpawn = Instant.MIN;
+        private long spawned = 0;
+
+        private Species(String name, Factory factory)
+        {
+            this.name = name;
+            this.factory = factory;
+        }
+
+        public Species withWeight(double val)
+        {
+            if (val < 0)
+            {
+                throw new IllegalArgumentException("weight must not be negative: " + val);
+            }
+            weight = val;
+            return this;
+        }
+
+        public Species withMaxConcurrent(int val)
+        {
+            maxConcurrent = val;
+            return this;
+        }
+
+        public Species withCooldown(Duration val)
+        {
+            cooldown = val;
+            return this;
+        }
+
+        /**
+         * Set how many physical entities spawning one adds. Default: 0
+         *
+         * @param val
+         * @return
+         */
+        public Species withPhysical(int val)
+        {
+            physical = val;
+            return this;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns how many are alive, as of the last time the registry looked.
+         *
+         * @return
+         */
+        public int getLive()
+        {
+            return liveCount;
+        }
+
+        /**
+         * Returns how many have been spawned.
+         *
+         * @return
+         */
+        public long getSpawned()
+        {
+            return spawned;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + liveCount + " live, " + spawned + " spawned";
+        }
+    }
+
+    private static final int DEFAULT_RETRY_FRAMES = 10;
+
+    private final SplittableRandom random;
+    private final List<Species> species = new ArrayList<>();
+    private int target = 1;
+    private int physicalBudget = Integer.MAX_VALUE;
+    private int retryFrames = DEFAULT_RETRY_FRAMES;
+
+    private Animation animation;
+    private ScheduledTask pending;
+    private final Consumer<Animation> fill = this::fill;
+    private final Function<Object[], Entity> died = args -> {
+        request(0);
+        return null;
+    };
+
+    /**
+     * @param random picks the species, so a seeded random gives the same picks every run
+     */
+    public SpawnerRegistry(SplittableRandom random)
+    {
+        this.random = random;
+    }
+
+    /**
+     * Add a species. It can be picked with a weight of 1, with no limit on how
+     * many are alive and no cooldown, until it is told otherwise.
+     *
+     * @param name
+     * @param factory
+     * @return the species, to set its limits on
+     */
+    public Species register(String name, Factory factory)
+    {
+        Species added = new Species(name, factory);
+        species.add(added);
+        return added;
+    }
+
+    public List<Species> getSpecies()
+    {
+        return Collections.unmodifiableList(species);
+    }
+
+    public int getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Set how many should be alive at once. Default: 1
+     *
+     * @param target
+     */
+    public void setTarget(int target)
+    {
+        this.target = target;
+        request(0);
+    }
+
+    public int getPhysicalBudget()
+    {
+        return physicalBudget;
+    }
+
+    /**
+     * Set the most physical entities the animation may have after a spawn.
+     * Nothing is killed to get under it, it only stops spawns. Default: no limit
+     *
+     * @param physicalBudget
+     */
+    public void setPhysicalBudget(int physicalBudget)
+    {
+        this.physicalBudget = physicalBudget;
+    }
+
+    public int getRetryFrames()
+    {
+        return retryFrames;
+    }
+
+    /**
+     * Set how many cycles to wait before trying again when the physical
+     * budget or max concurrent counts stop anything being spawned. Default: 10
+     *
+     * @param retryFrames
+     */
+    public void setRetryFrames(int retryFrames)
+    {
+        this.retryFrames = retryFrames;
+    }
+
+    /**
+     * Start keeping the target number alive in an animation, forgetting any
+     * that were alive before, e.g. after the animation's entities have all
+     * been removed. The first spawns happen at the start of the next cycle.
+     *
+     * @param animation
+     */
+    public void start(Animation animation)
+    {
+        stop();
+        this.animation = animation;
+        for (Species s : species)
+        {
+            s.liveCount = 0;
+            s.nextSpawn = Instant.MIN;
+        }
+        request(0);
+    }
+
+    /**
+     * Stop spawning. What is alive is left alone.
+     */
+    public void stop()
+    {
+        if (pending != null)
+        {
+            animation.cancel(pending);
+            pending = null;
+        }
+        animation = null;
+    }
+
+    private void request(int frames)
+    {
+        if (animation == null || pending != null && pending.isPending())
+        {
+            return;
+        }
+        pending = animation.scheduleFrames(frames, fill);
+    }
+
+    private void fill(Animation animation)
+    {
+        pending = null;
+        if (animation != this.animation)
+        {
+            return;
+        }
+        int alive = 0;
+        for (Species s : species)
+        {
+            alive += prune(s);
+        }
+        while (alive < target)
+        {
+            Instant now = animation.now();
+            Species next = pick(now);
+            if (next == null)
+            {
+                retry(now);
+                return;
+            }
+            spawn(next, now);
+            alive++;
+        }
+    }
+
+    /**
+     * Forget the ones that have left the animation, returning how many are left.
+     */
+    private int prune(Species s)
+    {
+        int kept = 0;
+        for (int i = 0; i < s.liveCount; i++)
+        {
+            if (animation.entity(s.live[i]) != null)
+            {
+                s.live[kept++] = s.live[i];
+            }
+        }
+        s.liveCount = kept;
+        return kept;
+    }
+
+    private boolean can_spawn(Species s, Instant now)
+    {
+        return s.weight > 0 && s.liveCount < s.maxConcurrent && !now.isBefore(s.nextSpawn)
+                && animation.physical_count() + s.physical <= physicalBudget;
+    }
+
+    /**
+     * Pick one of the species that can be spawned, by weight.
+     */
+    private Species pick(Instant now)
+    {
+        double total = 0;
+        for (Species s : species)
+        {
+            if (can_spawn(s, now))
+            {
+                total += s.weight;
+            }
+        }
+        if (total == 0)
+        {
+            return null;
+        }
+        double r = random.nextDouble() * total;
+        Species last = null;
+        for (Species s : species)
+        {
+            if (can_spawn(s, now))
+            {
+                last = s;
+                r -= s.weight;
+                if (r < 0)
+                {
+                    return s;
+                }
+            }
+        }
+        // rounding
+        return last;
+    }
+
+    private void spawn(Species s, Instant now)
+    {
+        Entity entity = s.factory.spawn(animation);
+        s.spawned++;
+        s.nextSpawn = now.plus(s.cooldown);
+        if (s.liveCount == s.live.length)
+        {
+            s.live = Arrays.copyOf(s.live, s.liveCount * 2);
+        }
+        s.live[s.liveCount++] = entity.getHandle();
+
+        // find out when it dies, after whatever it does when it dies
+        Function<Object[], Entity> death_cb = entity.getDeath_cb();
+        entity.setDeath_cb(death_cb == null ? died : args -> {
+            Entity replacement = death_cb.apply(args);
+            died.apply(args);
+            return replacement;
+        });
+    }
+
+    /**
+     * Nothing can be spawned now, try again at the end of the earliest
+     * cooldown that is holding a species back, or after retryFrames.
+     */
+    private void retry(Instant now)
+    {
+        Instant earliest = null;
+        for (Species s : species)
+        {
+            if (s.weight > 0 && s.liveCount < s.maxConcurrent && now.isBefore(s.nextSpawn)
+                    && animation.physical_count() + s.physical <= physicalBudget
+                    && (earliest == null || s.nextSpawn.isBefore(earliest)))
+            {
+                earliest = s.nextSpawn;
+            }
+        }
+        pending = earliest != null ? animation.schedule(earliest, fill) : animation.scheduleFrames(retryFrames, fill);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SpawnerRegistry" + species;
+    }
+}
@@ -0,0 +1,417 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextCharacter;
+import com.googlecode.lanterna.TextColor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * The compiled appearance of an entity: the animation frames parsed out of
+ * the shape strings, the color mask lined up with them, and what is drawn
+ * for every cell of every frame.
+ * <p>
+ * For drawing, each frame is a single flat array of {@link CharacterPalette}
+ * cell codes, row by row, width codes to a row. Each row also has a list of
+ * spans, the runs of opaque cells in it, so the transparent parts of a
+ * sprite can be skipped without looking at them. The spans of a frame are
+ * stored as start, end pairs in one array, with rowSpans[row] ..
+ * rowSpans[row + 1] indexing the pairs for a row.
+ * <p>
+ * The digits 1-9 in a color mask are palette slots rather than colors. The
+ * cells they cover are compiled to palette cells, and each entity using the
+ * sprite says what color each slot is (see {@link Entity#setPalette(String)}),
+ * so entities that only differ in their colors, like randomly colored fish,
+ * still share one sprite.
+ * <p>
+ * Sprites are shared between entities that look the same (see
+ * {@link SpriteCache} and {@link SpriteBundle}), so a sprite and the arrays
+ * it hands out must never be modified once it has been built.
+ */
+public final class Sprite
+{
+    static private final Logger logger = LoggerFactory.getLogger(Sprite.class);
+
+    // what the sprite was compiled from, these aren't used for drawing
+    private final char[][][] shape;
+    private final char[][][] colorMask;
+
+    private final int width;
+    private final int height;
+    // [frame][row * width + column]
+    private final long[][] cells;
+    // [frame][row], index into spans of the first span in a row, with an extra entry for the end
+    private final int[][] rowSpans;
+    // [frame][span * 2], start and end (exclusive) columns of each opaque run
+    private final int[][] spans;
+    // one more than the highest palette slot used, 0 if there are no palette cells
+    private int paletteSize = 0;
+    // what palette cells look like drawn without a palette
+    private final int defaultAttr;
+    // what the cells were compiled with
+    private final TextColor default_color;
+    private final TextColor background_color;
+    private final char transparent;
+
+    /**
+     * Compile a sprite from frames that have already been parsed.
+     *
+     * @param shape            the frames, [frame][row][column]
+     * @param colorMask        color mask frames, or null to draw everything in the default color
+     * @param default_color
+     * @param background_color
+     * @param transparent      the character that is not drawn
+     */
+    Sprite(char[][][] shape, char[][][] colorMask, TextColor default_color, TextColor background_color, char transparent)
+    {
+        this.shape = shape;
+
+        int w = 0;
+        int h = 0;
+        for (char[][] frame : shape)
+        {
+            h = Math.max(h, frame.length);
+            for (char[] line : frame)
+            {
+                w = Math.max(w, line.length);
+            }
+        }
+        width = w;
+        height = h;
+
+        this.colorMask = colorMask == null ? null : fit_mask(colorMask);
+        this.default_color = default_color;
+        this.background_color = background_color;
+        this.transparent = transparent;
+        defaultAttr = CellBuffer.attr(ColorIndex.indexOf(default_color), ColorIndex.indexOf(background_color), 0);
+        cells = build_cells(default_color, background_color, transparent);
+        rowSpans = new int[shape.length][];
+        spans = new int[shape.length][];
+        build_spans();
+    }
+
+    /**
+     * Parse and compile a sprite.
+     *
+     * @param shape            the frames, one string per frame
+     * @param colorMask        the color mask, or null
+     * @param default_color
+     * @param background_color
+     * @param transparent      the character that is not drawn
+     * @param auto_trans       make whitespace before the first character of a line transparent
+     * @return
+     */
+    static Sprite compile(String[] shape, String colorMask, TextColor default_color, TextColor background_color,
+                          char transparent, boolean auto_trans)
+    {
+        char[][][] frames = build_shape(shape);
+        if (auto_trans)
+        {
+            auto_trans(frames, transparent);
+        }
+        char[][][] mask = colorMask == null ? null : build_shape(new String[]{colorMask});
+        return new Sprite(frames, mask, default_color, background_color, transparent);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getFrameCount()
+    {
+        return shape.length;
+    }
+
+    TextColor getDefault_color()
+    {
+        return default_color;
+    }
+
+    TextColor getBackground_color()
+    {
+        return background_color;
+    }
+
+    char getTransparent()
+    {
+        return transparent;
+    }
+
+    /**
+     * Returns one more than the highest palette slot in the color mask, or 0
+     * if the mask has no palette slots.
+     *
+     * @return
+     */
+    public int getPaletteSize()
+    {
+        return paletteSize;
+    }
+
+    /**
+     * Returns the frames of the sprite. These are shared and must not be modified.
+     *
+     * @return
+     */
+    public char[][][] getShape()
+    {
+        return shape;
+    }
+
+    /**
+     * Returns the color mask lined up with the frames, or null if there isn't
+     * one. This is shared and must not be modified.
+     *
+     * @return
+     */
+    public char[][][] getColorMask()
+    {
+        return colorMask;
+    }
+
+    /**
+     * Returns the cell codes of a frame, row by row. This is shared and must
+     * not be modified.
+     *
+     * @param frame
+     * @return
+     */
+    long[] getCells(int frame)
+    {
+        return cells[frame];
+    }
+
+    /**
+     * Returns where the spans of each row of a frame start in
+     * {@link #getSpans(int)}, height + 1 entries.
+     *
+     * @param frame
+     * @return
+     */
+    int[] getRowSpans(int frame)
+    {
+        return rowSpans[frame];
+    }
+
+    /**
+     * Returns the opaque runs of a frame, as start, end (exclusive) column pairs.
+     *
+     * @param frame
+     * @return
+     */
+    int[] getSpans(int frame)
+    {
+        return spans[frame];
+    }
+
+    /**
+     * Returns the character drawn at a cell of a frame, or null if the cell
+     * is transparent. Palette cells are given in the default color.
+     *
+     * @param frame
+     * @param x
+     * @param y
+     * @return
+     */
+    public TextCharacter getCharacter(int frame, int x, int y)
+    {
+        long code = cells[frame][y * width + x];
+        if (code == CharacterPalette.TRANSPARENT)
+        {
+            return null;
+        }
+        if (CharacterPalette.isPaletteCell(code))
+        {
+            return CharacterPalette.get(CharacterPalette.charOf(code), defaultAttr);
+        }
+        return CharacterPalette.character(code);
+    }
+
+    /**
+     * Split each frame into lines of characters, [frame][row][column]
+     */
+    static char[][][] build_shape(String[] shape)
+    {
+        char[][][] result = new char[shape.length][][];
+        for (int i = 0; i < shape.length; i++)
+        {
+            result[i] = build_frame(shape[i].split("\n"));
+        }
+        return result;
+    }
+
+    private static char[][] build_frame(String[] lines)
+    {
+        int size = lines.length;
+        if (size == 0)
+        {
+            // @todo log this, shouldn't happen
+            return new char[][]{{' '}};
+        }
+        int index = 0;
+
+        // strip an empty line from the top, so shapes can start on the line after the opening quote
+        if (lines[0] == null || lines[0].isEmpty())
+        {
+            index++;
+            size--;
+        }
+        char[][] data = new char[size][];
+        for (int i = 0; i < size; i++, index++)
+        {
+            data[i] = lines[index].toCharArray();
+        }
+
+        return data;
+    }
+
+    /**
+     * automatically make whitespace appearing on a line before the first non-
+     * whitespace character transparent
+     */
+    static void auto_trans(char[][][] shape, char transparent)
+    {
+        for (char[][] frame : shape)
+        {
+            for (char[] line : frame)
+            {
+                for (int index = 0; index < line.length && Character.isWhitespace(line[index]); index++)
+                {
+                    line[index] = transparent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Line the mask up with the frames. Short rows are padded and missing rows
+     * added, and if we were given fewer mask frames than we have animation
+     * frames, the last one is repeated to make up the difference. This allows
+     * a single color mask that is the same for every animation frame.
+     */
+    private char[][][] fit_mask(char[][][] mask)
+    {
+        char[][][] fitted = new char[shape.length][height][width];
+        for (int f = 0; f < shape.length; f++)
+        {
+            char[][] frame = mask[Math.min(f, mask.length - 1)];
+            if (frame.length > height)
+            {
+                logger.warn("Mask frame {} has {} rows, the shape only has {}", f, frame.length, height);
+            }
+            for (int i = 0; i < Math.min(frame.length, height); i++)
+            {
+                if (frame[i].length > width)
+                {
+                    logger.warn("Mask frame {} row {} is wider than the shape: {} > {}", f, i, frame[i].length, width);
+                }
+                System.arraycopy(frame[i], 0, fitted[f][i], 0, Math.min(frame[i].length, width));
+            }
+        }
+        return fitted;
+    }
+
+    private long[][] build_cells(TextColor default_color, TextColor background_color, char transparent)
+    {
+        long[][] result = new long[shape.length][width * height];
+        for (int f = 0; f < shape.length; f++)
+        {
+            long[] frame = result[f];
+            Arrays.fill(frame, CharacterPalette.TRANSPARENT);
+            for (int i = 0; i < height; i++)
+            {
+                // cells past the end of a line stay transparent
+                int length = i < shape[f].length ? shape[f][i].length : 0;
+                for (int j = 0; j < length; j++)
+                {
+                    char c = shape[f][i][j];
+                    if (c == transparent)
+                    {
+                        continue;
+                    }
+
+                    TextColor color = default_color;
+                    char m = colorMask == null ? ' ' : colorMask[f][i][j];
+                    if (m >= '1' && m <= '9')
+                    {
+                        // colored by the entity
+                        int slot = m - '0';
+                        frame[i * width + j] = CharacterPalette.paletteCell(c, slot);
+                        paletteSize = Math.max(paletteSize, slot + 1);
+                        continue;
+                    }
+                    if (m != ' ' && m != '\u0000')
+                    {
+                        // make sure it's a valid color
+                        color = Animation.COLOR_MAP.get(Character.toString(m).toUpperCase());
+                        if (color == null)
+                        {
+                            if (m == transparent)
+                            {
+                                continue;
+                            }
+                            logger.error("Invalid color mask: [{}][{}][{}]:'{}'", f, i, j, m);
+                            color = default_color;
+                        }
+                    }
+
+                    // capital letters indicate bold colors
+                    frame[i * width + j] = CharacterPalette.code(c, color, background_color, Character.isUpperCase(m));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void build_spans()
+    {
+        for (int f = 0; f < cells.length; f++)
+        {
+            long[] frame = cells[f];
+            int[] rows = new int[height + 1];
+            int count = 0;
+            int[] runs = new int[8];
+            for (int i = 0; i < height; i++)
+            {
+                rows[i] = count;
+                int row = i * width;
+                int j = 0;
+                while (j < width)
+                {
+                    if (frame[row + j] == CharacterPalette.TRANSPARENT)
+                    {
+                        j++;
+                        continue;
+                    }
+                    int start = j;
+                    while (j < width && frame[row + j] != CharacterPalette.TRANSPARENT)
+                    {
+                        j++;
+                    }
+                    if (count + 2 > runs.length)
+                    {
+                        runs = Arrays.copyOf(runs, runs.length * 2);
+                    }
+                    runs[count++] = start;
+                    runs[count++] = j;
+                }
+            }
+            rows[height] = count;
+            rowSpans[f] = rows;
+            spans[f] = Arrays.copyOf(runs, count);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Sprite[" + width + "x" + height + ", " + shape.length + " frames]";
+    }
+}
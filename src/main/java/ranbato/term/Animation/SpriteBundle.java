@@ -0,0 +1,322 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextColor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sprites precompiled from a {@link SpriteCatalog}, so they are ready to
+ * draw without parsing any art at startup. Opening a bundle maps the file
+ * and reads the index, a sprite is only decoded the first time it is asked
+ * for, and kept after that.
+ * <p>
+ * The bundle is big endian:
+ * <pre>
+ *   int     magic AQSB
+ *   short   version
+ *   short   sprite count
+ *   index, per sprite:
+ *     short   name length, then the name in UTF-8
+ *     int     offset of the sprite from the start of the bundle
+ *   per sprite:
+ *     byte    default color and background color, TextColor.ANSI ordinals
+ *     char    transparent character
+ *     byte    1 if the characters are stored as chars, 0 if they all fit in a byte
+ *     short   frame count, then the frames, with auto_trans already applied
+ *     short   mask count, then the masks
+ *   frame or mask:
+ *     short   rows, then per row a short length followed by the characters
+ * </pre>
+ */
+public final class SpriteBundle
+{
+    static final String EXTENSION = ".bundle";
+
+    private static final int MAGIC = 0x41515342; // AQSB
+    private static final int VERSION = 1;
+
+    private final ByteBuffer buffer;
+    private final List<String> names;
+    private final Map<String, Integer> index;
+    private final int[] offsets;
+    private final Sprite[] sprites;
+
+    private SpriteBundle(ByteBuffer buffer, String source) throws IOException
+    {
+        this.buffer = buffer;
+        try
+        {
+            ByteBuffer in = buffer.duplicate();
+            if (in.getInt() != MAGIC)
+            {
+                throw new IOException(source + " is not a sprite bundle");
+            }
+            int version = in.getShort();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported sprite bundle version " + version + " in " + source);
+            }
+            int count = in.getShort() & 0xFFFF;
+            names = new ArrayList<>(count);
+            index = new HashMap<>(count * 2);
+            offsets = new int[count];
+            sprites = new Sprite[count];
+            for (int i = 0; i < count; i++)
+            {
+                byte[] name = new byte[in.getShort() & 0xFFFF];
+                in.get(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+                index.put(names.get(i), i);
+                offsets[i] = in.getInt();
+            }
+        } catch (BufferUnderflowException e)
+        {
+            throw new IOException(source + " is truncated");
+        }
+    }
+
+    /**
+     * Open a bundle file, mapping it into memory.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static SpriteBundle open(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            // the mapping stays valid after the channel is closed
+            return new SpriteBundle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.toString());
+        }
+    }
+
+    /**
+     * Load a bundle from the classpath, /sprites/name.bundle. It is mapped if
+     * it is a file, and read into memory if it is in a jar.
+     *
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public static SpriteBundle load(String name) throws IOException
+    {
+        String resource = "/sprites/" + name + EXTENSION;
+        URL url = SpriteBundle.class.getResource(resource);
+        if (url == null)
+        {
+            throw new IOException("No sprite bundle " + resource + " on the classpath, it is built by compileSprites");
+        }
+        if (url.getProtocol().equals("file"))
+        {
+            try
+            {
+                return open(Paths.get(url.toURI()));
+            } catch (URISyntaxException e)
+            {
+                // fall back to reading it
+            }
+        }
+        try (InputStream in = url.openStream())
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            for (int read; (read = in.read(chunk)) > 0; )
+            {
+                bytes.write(chunk, 0, read);
+            }
+            return new SpriteBundle(ByteBuffer.wrap(bytes.toByteArray()), resource);
+        }
+    }
+
+    /**
+     * Returns the names of the sprites, in catalog order.
+     *
+     * @return
+     */
+    public List<String> names()
+    {
+        return Collections.unmodifiableList(names);
+    }
+
+    public boolean contains(String name)
+    {
+        return index.containsKey(name);
+    }
+
+    public int size()
+    {
+        return names.size();
+    }
+
+    /**
+     * Returns a sprite, decoding it if this is the first time it's been asked for.
+     *
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if the bundle has no sprite called name
+     */
+    public synchronized Sprite get(String name)
+    {
+        Integer i = index.get(name);
+        if (i == null)
+        {
+            throw new IllegalArgumentException("No sprite called " + name);
+        }
+        if (sprites[i] == null)
+        {
+            sprites[i] = decode(offsets[i]);
+        }
+        return sprites[i];
+    }
+
+    private Sprite decode(int offset)
+    {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        TextColor.ANSI[] colors = TextColor.ANSI.values();
+        TextColor default_color = colors[in.get()];
+        TextColor background_color = colors[in.get()];
+        char transparent = in.getChar();
+        boolean wide = in.get() != 0;
+        char[][][] shape = read_frames(in, wide);
+        char[][][] mask = read_frames(in, wide);
+        return new Sprite(shape, mask.length == 0 ? null : mask, default_color, background_color, transparent);
+    }
+
+    private static char[][][] read_frames(ByteBuffer in, boolean wide)
+    {
+        char[][][] frames = new char[in.getShort()][][];
+        for (int f = 0; f < frames.length; f++)
+        {
+            char[][] frame = new char[in.getShort()][];
+            for (int i = 0; i < frame.length; i++)
+            {
+                char[] row = new char[in.getShort()];
+                for (int j = 0; j < row.length; j++)
+                {
+                    row[j] = wide ? in.getChar() : (char) (in.get() & 0xFF);
+                }
+                frame[i] = row;
+            }
+            frames[f] = frame;
+        }
+        return frames;
+    }
+
+    /**
+     * Write catalog entries as a bundle.
+     *
+     * @param entries
+     * @param out
+     * @throws IOException
+     */
+    static void write(List<SpriteCatalog.Entry> entries, OutputStream out) throws IOException
+    {
+        // the sprites first, to find out where each one starts
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(body);
+        int[] offsets = new int[entries.size()];
+        byte[][] names = new byte[entries.size()][];
+        int indexSize = 8;
+        for (int i = 0; i < entries.size(); i++)
+        {
+            SpriteCatalog.Entry entry = entries.get(i);
+            names[i] = entry.name.getBytes(StandardCharsets.UTF_8);
+            indexSize += 2 + names[i].length + 4;
+
+            offsets[i] = data.size();
+            char[][][] shape = entry.shape();
+            char[][][] mask = entry.mask();
+            boolean wide = is_wide(shape) || mask != null && is_wide(mask);
+            data.writeByte(entry.default_color.ordinal());
+            data.writeByte(entry.background_color.ordinal());
+            data.writeChar(entry.transparent);
+            data.writeByte(wide ? 1 : 0);
+            write_frames(data, shape, wide);
+            write_frames(data, mask == null ? new char[0][][] : mask, wide);
+        }
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeShort(VERSION);
+        header.writeShort(check_short(entries.size()));
+        for (int i = 0; i < entries.size(); i++)
+        {
+            header.writeShort(check_short(names[i].length));
+            header.write(names[i]);
+            header.writeInt(indexSize + offsets[i]);
+        }
+        body.writeTo(header);
+        header.flush();
+    }
+
+    private static void write_frames(DataOutputStream data, char[][][] frames, boolean wide) throws IOException
+    {
+        data.writeShort(check_short(frames.length));
+        for (char[][] frame : frames)
+        {
+            data.writeShort(check_short(frame.length));
+            for (char[] row : frame)
+            {
+                data.writeShort(check_short(row.length));
+                for (char c : row)
+                {
+                    if (wide)
+                    {
+                        data.writeChar(c);
+                    }
+                    else
+                    {
+                        data.writeByte(c);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean is_wide(char[][][] frames)
+    {
+        for (char[][] frame : frames)
+        {
+            for (char[] row : frame)
+            {
+                for (char c : row)
+                {
+                    if (c > 0xFF)
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int check_short(int value) throws IOException
+    {
+        if (value > Short.MAX_VALUE)
+        {
+            throw new IOException("Too big for a sprite bundle: " + value);
+        }
+        return value;
+    }
+}
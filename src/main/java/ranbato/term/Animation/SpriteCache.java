@@ -0,0 +1,216 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextColor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Global cache of compiled {@link Sprite}s, so entities that look the same
+ * share one sprite instead of each parsing its shape and color mask and
+ * building its own characters. A sprite is looked up by everything that goes
+ * into compiling it: the shape and color mask strings, the default and
+ * background colors, the transparent character and auto transparency.
+ * <p>
+ * Randomly colored masks mean the number of distinct sprites isn't bounded,
+ * so the cache only keeps the most recently used {@link #getMaxSize()}
+ * sprites. Entities keep their sprite when it is evicted.
+ */
+public final class SpriteCache
+{
+    private static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static int maxSize = DEFAULT_MAX_SIZE;
+    private static long hits = 0;
+    private static long misses = 0;
+
+    private static final Map<Key, Sprite> sprites = new LinkedHashMap<Key, Sprite>(64, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Sprite> eldest)
+        {
+            return size() > maxSize;
+        }
+    };
+
+    // looked up with under the lock, so a hit doesn't allocate a key
+    private static final Key probe = new Key();
+
+    private SpriteCache()
+    {
+    }
+
+    /**
+     * Returns the compiled sprite for a shape, compiling it if it isn't cached.
+     *
+     * @param shape            the frames, one string per frame
+     * @param colorMask        the color mask, or null
+     * @param default_color
+     * @param background_color
+     * @param transparent
+     * @param auto_trans
+     * @return
+     */
+    static Sprite get(String[] shape, String colorMask, TextColor default_color, TextColor background_color,
+                      char transparent, boolean auto_trans)
+    {
+        synchronized (sprites)
+        {
+            probe.set(shape, colorMask, default_color, background_color, transparent, auto_trans);
+            Sprite sprite = sprites.get(probe);
+            // don't hold on to the caller's shape
+            probe.shape = null;
+            if (sprite != null)
+            {
+                hits++;
+                return sprite;
+            }
+            misses++;
+        }
+
+        // compile outside of the lock, if two threads race the first one in wins
+        Sprite sprite = Sprite.compile(shape, colorMask, default_color, background_color, transparent, auto_trans);
+        Key key = new Key();
+        // copied, so changing the caller's array later can't corrupt the cache
+        key.set(shape.clone(), colorMask, default_color, background_color, transparent, auto_trans);
+        synchronized (sprites)
+        {
+            Sprite existing = sprites.putIfAbsent(key, sprite);
+            return existing != null ? existing : sprite;
+        }
+    }
+
+    public static int size()
+    {
+        synchronized (sprites)
+        {
+            return sprites.size();
+        }
+    }
+
+    public static int getMaxSize()
+    {
+        synchronized (sprites)
+        {
+            return maxSize;
+        }
+    }
+
+    /**
+     * Set the most sprites kept in the cache. Default: 1024
+     *
+     * @param maxSize
+     */
+    public static void setMaxSize(int maxSize)
+    {
+        if (maxSize < 0)
+        {
+            throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+        }
+        synchronized (sprites)
+        {
+            SpriteCache.maxSize = maxSize;
+            if (sprites.size() > maxSize)
+            {
+                sprites.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found a sprite already compiled.
+     *
+     * @return
+     */
+    public static long getHits()
+    {
+        synchronized (sprites)
+        {
+            return hits;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that had to compile a sprite.
+     *
+     * @return
+     */
+    public static long getMisses()
+    {
+        synchronized (sprites)
+        {
+            return misses;
+        }
+    }
+
+    public static void clear()
+    {
+        synchronized (sprites)
+        {
+            sprites.clear();
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    private static final class Key
+    {
+        private String[] shape;
+        private String colorMask;
+        private TextColor default_color;
+        private TextColor background_color;
+        private char transparent;
+        private boolean auto_trans;
+        private int hash;
+
+        /**
+         * Set what the key is for. A key must not be changed once it is in the cache.
+         */
+        void set(String[] shape, String colorMask, TextColor default_color, TextColor background_color,
+                 char transparent, boolean auto_trans)
+        {
+            this.shape = shape;
+            this.colorMask = colorMask;
+            this.default_color = default_color;
+            this.background_color = background_color;
+            this.transparent = transparent;
+            this.auto_trans = auto_trans;
+            int h = Arrays.hashCode(this.shape);
+            h = 31 * h + Objects.hashCode(colorMask);
+            h = 31 * h + Objects.hashCode(default_color);
+            h = 31 * h + Objects.hashCode(background_color);
+            h = 31 * h + transparent;
+            h = 31 * h + (auto_trans ? 1 : 0);
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash &&
+                    transparent == key.transparent &&
+                    auto_trans == key.auto_trans &&
+                    Arrays.equals(shape, key.shape) &&
+                    Objects.equals(colorMask, key.colorMask) &&
+                    Objects.equals(default_color, key.default_color) &&
+                    Objects.equals(background_color, key.background_color);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package ranbato.term.Animation;
+
+import com.googlecode.lanterna.TextColor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads sprite catalogs, the text source of {@link SpriteBundle}s. A
+ * catalog lists sprites one after the other, each a name followed by its
+ * settings, animation frames and color masks:
+ * <pre>
+ * sprite fish1.right
+ * auto_trans
+ * frame &lt;&lt;END
+ *   __
+ * &gt;&lt;_'&gt;
+ *    '
+ * END
+ * mask &lt;&lt;END
+ *   11
+ * 61145
+ *    3
+ * END
+ * </pre>
+ * A frame or mask is every line after it up to the tag, exactly as written.
+ * "frame x5 &lt;&lt;END" repeats a frame 5 times. The settings are color and
+ * background (ANSI color names), transparent (a character, which may be
+ * quoted, e.g. ' ') and auto_trans. Outside frames and masks, blank lines
+ * and lines starting with # are ignored.
+ * <p>
+ * Run as a program, this compiles catalogs to bundles at build time, so
+ * nothing has to parse the art at startup:
+ * <pre>
+ *   SpriteCatalog &lt;output directory&gt; &lt;catalog or directory&gt;...
+ * </pre>
+ * Each name.sprites is compiled to name.bundle in the output directory.
+ */
+public final class SpriteCatalog
+{
+    static final String EXTENSION = ".sprites";
+
+    private SpriteCatalog()
+    {
+    }
+
+    /**
+     * A sprite as described in a catalog
+     */
+    static final class Entry
+    {
+        final String name;
+        TextColor.ANSI default_color = TextColor.ANSI.WHITE;
+        TextColor.ANSI background_color = TextColor.ANSI.BLACK;
+        char transparent = '?';
+        boolean auto_trans = false;
+        // [row][column], as written in the catalog
+        final List<char[][]> frames = new ArrayList<>();
+        final List<char[][]> masks = new ArrayList<>();
+
+        Entry(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Returns the frames as they are drawn, with auto_trans applied.
+         *
+         * @return
+         */
+        char[][][] shape()
+        {
+            char[][][] shape = new char[frames.size()][][];
+            for (int f = 0; f < shape.length; f++)
+            {
+                // repeated frames share their rows in the entry
+                char[][] frame = frames.get(f);
+                shape[f] = new char[frame.length][];
+                for (int i = 0; i < frame.length; i++)
+                {
+                    shape[f][i] = frame[i].clone();
+                }
+            }
+            if (auto_trans)
+            {
+                Sprite.auto_trans(shape, transparent);
+            }
+            return shape;
+        }
+
+        /**
+         * Returns the color mask frames, or null if there aren't any.
+         *
+         * @return
+         */
+        char[][][] mask()
+        {
+            return masks.isEmpty() ? null : masks.toArray(new char[masks.size()][][]);
+        }
+    }
+
+    /**
+     * Read a catalog.
+     *
+     * @param in
+     * @param source what the catalog is called in errors
+     * @return the sprites, in catalog order
+     * @throws IOException if the catalog is malformed
+     */
+    static List<Entry> parse(BufferedReader in, String source) throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        Entry entry = null;
+        int number = 0;
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+            number++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+            {
+                continue;
+            }
+            int space = trimmed.indexOf(' ');
+            String keyword = space < 0 ? trimmed : trimmed.substring(0, space);
+            String value = space < 0 ? "" : trimmed.substring(space + 1).trim();
+
+            if (keyword.equals("sprite"))
+            {
+                if (value.isEmpty() || !names.add(value))
+                {
+                    throw error(source, number, value.isEmpty() ? "sprite needs a name" : "duplicate sprite " + value);
+                }
+                check_frames(entry, source, number);
+                entry = new Entry(value);
+                entries.add(entry);
+                continue;
+            }
+            if (entry == null)
+            {
+                throw error(source, number, "expected sprite, got " + keyword);
+            }
+            switch (keyword)
+            {
+                case "color":
+                    entry.default_color = parse_color(value, source, number);
+                    break;
+                case "background":
+                    entry.background_color = parse_color(value, source, number);
+                    break;
+                case "transparent":
+                    if (value.length() == 3 && value.charAt(0) == '\'' && value.charAt(2) == '\'')
+                    {
+                        value = value.substring(1, 2);
+                    }
+                    if (value.length() != 1)
+                    {
+                        throw error(source, number, "transparent needs a single character");
+                    }
+                    entry.transparent = value.charAt(0);
+                    break;
+                case "auto_trans":
+                    entry.auto_trans = true;
+                    break;
+                case "frame":
+                case "mask":
+                    int repeat = 1;
+                    if (value.startsWith("x"))
+                    {
+                        int end = value.indexOf(' ');
+                        try
+                        {
+                            repeat = Integer.parseInt(value.substring(1, end < 0 ? value.length() : end));
+                        } catch (NumberFormatException e)
+                        {
+                            repeat = 0;
+                        }
+                        if (repeat < 1)
+                        {
+                            throw error(source, number, "bad repeat count in " + trimmed);
+                        }
+                        value = end < 0 ? "" : value.substring(end + 1).trim();
+                    }
+                    if (!value.startsWith("<<") || value.length() == 2)
+                    {
+                        throw error(source, number, keyword + " needs <<TAG");
+                    }
+                    String tag = value.substring(2);
+                    int start = number;
+                    List<char[]> rows = new ArrayList<>();
+                    while ((line = in.readLine()) != null && !line.equals(tag))
+                    {
+                        number++;
+                        rows.add(line.toCharArray());
+                    }
+                    number++;
+                    if (line == null)
+                    {
+                        throw error(source, start, keyword + " isn't ended by " + tag);
+                    }
+                    char[][] frame = rows.toArray(new char[rows.size()][]);
+                    List<char[][]> frames = keyword.equals("frame") ? entry.frames : entry.masks;
+                    for (int i = 0; i < repeat; i++)
+                    {
+                        frames.add(frame);
+                    }
+                    break;
+                default:
+                    throw error(source, number, "unknown setting " + keyword);
+            }
+        }
+        check_frames(entry, source, number);
+        return entries;
+    }
+
+    /**
+     * Compile catalogs to bundles.
+     *
+     * @param args the output directory, then catalogs or directories of them
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("usage: SpriteCatalog <output directory> <catalog or directory>...");
+            System.exit(1);
+        }
+        File output = new File(args[0]);
+        if (!output.isDirectory() && !output.mkdirs())
+        {
+            throw new IOException("Can't create " + output);
+        }
+
+        List<File> catalogs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++)
+        {
+            File file = new File(args[i]);
+            File[] listed = file.listFiles((dir, name) -> name.endsWith(EXTENSION));
+            if (listed != null)
+            {
+                Arrays.sort(listed);
+                catalogs.addAll(Arrays.asList(listed));
+            }
+            else
+            {
+                catalogs.add(file);
+            }
+        }
+
+        for (File catalog : catalogs)
+        {
+            List<Entry> entries;
+            try (BufferedReader in = Files.newBufferedReader(catalog.toPath(), StandardCharsets.UTF_8))
+            {
+                entries = parse(in, catalog.getPath());
+            }
+            String name = catalog.getName();
+            if (name.endsWith(EXTENSION))
+            {
+                name = name.substring(0, name.length() - EXTENSION.length());
+            }
+            File bundle = new File(output, name + SpriteBundle.EXTENSION);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(bundle)))
+            {
+                SpriteBundle.write(entries, out);
+            }
+            System.out.println("compiled " + entries.size() + " sprites from " + catalog + " to " + bundle
+                    + " (" + bundle.length() + " bytes)");
+        }
+    }
+
+    private static TextColor.ANSI parse_color(String value, String source, int number) throws IOException
+    {
+        try
+        {
+            return TextColor.ANSI.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e)
+        {
+            throw error(source, number, "unknown color " + value);
+        }
+    }
+
+    private static void check_frames(Entry entry, String source, int number) throws IOException
+    {
+        if (entry != null && entry.frames.isEmpty())
+        {
+            throw error(source, number, "sprite " + entry.name + " has no frames");
+        }
+    }
+
+    private static IOException error(String source, int number, String message)
+    {
+        return new IOException(source + ":" + number + ": " + message);
+    }
+}
@@ -0,0 +1,72 @@
+package ranbato.term.Animation;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock driven by the animation instead of the wall clock. Time starts at
+ * a fixed instant and moves on by one tick length for every cycle the
+ * animation has run, so anything timed with it (such as an entity's
+ * die_time) happens on the same cycle every run, however fast or slow the
+ * cycles actually run.
+ */
+public class TickClock extends Clock
+{
+    private final Animation animation;
+    private final Instant start;
+    private final long tickNanos;
+    private final ZoneId zone;
+
+    /**
+     * @param animation  the animation whose cycles drive the clock
+     * @param start      the time before the first cycle
+     * @param tickLength how far time moves on each cycle
+     */
+    public TickClock(Animation animation, Instant start, Duration tickLength)
+    {
+        this(animation, start, tickLength.toNanos(), ZoneOffset.UTC);
+    }
+
+    private TickClock(Animation animation, Instant start, long tickNanos, ZoneId zone)
+    {
+        if (tickNanos <= 0)
+        {
+            throw new IllegalArgumentException("Tick length must be positive: " + tickNanos + "ns");
+        }
+        this.animation = animation;
+        this.start = start;
+        this.tickNanos = tickNanos;
+        this.zone = zone;
+    }
+
+    @Override
+    public ZoneId getZone()
+    {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone)
+    {
+        return new TickClock(animation, start, tickNanos, zone);
+    }
+
+    @Override
+    public Instant instant()
+    {
+        return start.plusNanos(animation.getTick() * tickNanos);
+    }
+
+    public Instant getStart()
+    {
+        return start;
+    }
+
+    public Duration getTickLength()
+    {
+        return Duration.ofNanos(tickNanos);
+    }
+}
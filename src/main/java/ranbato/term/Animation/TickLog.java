@@ -0,0 +1,411 @@
+package ranbato.term.Animation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary log of what happened to a deterministic run, so it can
+ * be replayed cycle for cycle, and checked while replaying. The log starts
+ * with a header holding everything needed to set the run up again (the
+ * random seed, screen size and tick length), followed by one record per
+ * event:
+ * <pre>
+ *   byte    record type
+ *   varint  ticks since the previous record
+ *   ...     payload
+ * </pre>
+ * <ul>
+ * <li>INPUT: varint key character</li>
+ * <li>SPAWN: varint entity type (an index into the types seen so far, the
+ * next index is followed by the type as UTF), then zigzag varint x, y and z</li>
+ * <li>RESIZE: varint columns and rows, the screen changed size before this
+ * tick</li>
+ * <li>END: no payload, the run ended on this tick</li>
+ * </ul>
+ */
+public final class TickLog
+{
+    private static final int MAGIC = 0x4151544C; // AQTL
+    // version 2 added RESIZE, version 1 logs can still be read
+    private static final int VERSION = 2;
+
+    public static final byte INPUT = 1;
+    public static final byte SPAWN = 2;
+    public static final byte END = 3;
+    public static final byte RESIZE = 4;
+
+    private TickLog()
+    {
+    }
+
+    /**
+     * How the logged run was set up
+     */
+    public static final class Header
+    {
+        private final long seed;
+        private final int columns;
+        private final int rows;
+        private final long tickNanos;
+
+        public Header(long seed, int columns, int rows, long tickNanos)
+        {
+            this.seed = seed;
+            this.columns = columns;
+            this.rows = rows;
+            this.tickNanos = tickNanos;
+        }
+
+        public long getSeed()
+        {
+            return seed;
+        }
+
+        public int getColumns()
+        {
+            return columns;
+        }
+
+        public int getRows()
+        {
+            return rows;
+        }
+
+        public long getTickNanos()
+        {
+            return tickNanos;
+        }
+    }
+
+    /**
+     * A single logged event
+     */
+    public static final class Event
+    {
+        private final byte type;
+        private final long tick;
+        private final char key;
+        private final String entityType;
+        private final int x, y, z;
+
+        Event(byte type, long tick, char key, String entityType, int x, int y, int z)
+        {
+            this.type = type;
+            this.tick = tick;
+            this.key = key;
+            this.entityType = entityType;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public byte getType()
+        {
+            return type;
+        }
+
+        public long getTick()
+        {
+            return tick;
+        }
+
+        /**
+         * Returns the key pressed, for INPUT events.
+         *
+         * @return
+         */
+        public char getKey()
+        {
+            return key;
+        }
+
+        /**
+         * Returns the type of the entity spawned, for SPAWN events.
+         *
+         * @return
+         */
+        public String getEntityType()
+        {
+            return entityType;
+        }
+
+        public int getX()
+        {
+            return x;
+        }
+
+        public int getY()
+        {
+            return y;
+        }
+
+        public int getZ()
+        {
+            return z;
+        }
+
+        /**
+         * Returns the new number of columns, for RESIZE events.
+         *
+         * @return
+         */
+        public int getColumns()
+        {
+            return x;
+        }
+
+        /**
+         * Returns the new number of rows, for RESIZE events.
+         *
+         * @return
+         */
+        public int getRows()
+        {
+            return y;
+        }
+
+        /**
+         * Returns true if this is a spawn of an entity like the given one.
+         *
+         * @param entity
+         * @return
+         */
+        public boolean matches(Entity entity)
+        {
+            return type == SPAWN && entityType.equals(typeOf(entity))
+                    && x == entity.getX() && y == entity.getY() && z == entity.getZ();
+        }
+
+        @Override
+        public String toString()
+        {
+            switch (type)
+            {
+                case INPUT:
+                    return "tick " + tick + ": input '" + key + "'";
+                case SPAWN:
+                    return "tick " + tick + ": spawn " + entityType + " at " + x + "," + y + "," + z;
+                case RESIZE:
+                    return "tick " + tick + ": resize to " + x + "x" + y;
+                default:
+                    return "tick " + tick + ": end";
+            }
+        }
+    }
+
+    /**
+     * Writes a log
+     */
+    public static final class Writer implements Closeable
+    {
+        private final DataOutputStream out;
+        private final Map<String, Integer> types = new HashMap<>();
+        private long lastTick = 0;
+
+        public Writer(OutputStream out, Header header) throws IOException
+        {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(header.seed);
+            writeVarint(header.columns);
+            writeVarint(header.rows);
+            writeVarint(header.tickNanos);
+        }
+
+        public void input(long tick, char key) throws IOException
+        {
+            record(INPUT, tick);
+            writeVarint(key);
+        }
+
+        public void spawn(long tick, Entity entity) throws IOException
+        {
+            record(SPAWN, tick);
+            String type = typeOf(entity);
+            Integer index = types.get(type);
+            if (index == null)
+            {
+                writeVarint(types.size());
+                out.writeUTF(type);
+                types.put(type, types.size());
+            }
+            else
+            {
+                writeVarint(index);
+            }
+            writeVarint(zigzag(entity.getX()));
+            writeVarint(zigzag(entity.getY()));
+            writeVarint(zigzag(entity.getZ()));
+        }
+
+        public void resize(long tick, int columns, int rows) throws IOException
+        {
+            record(RESIZE, tick);
+            writeVarint(columns);
+            writeVarint(rows);
+        }
+
+        public void end(long tick) throws IOException
+        {
+            record(END, tick);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        private void record(byte type, long tick) throws IOException
+        {
+            if (tick < lastTick)
+            {
+                throw new IllegalArgumentException("Events must be logged in tick order: " + tick + " < " + lastTick);
+            }
+            out.writeByte(type);
+            writeVarint(tick - lastTick);
+            lastTick = tick;
+        }
+
+        private void writeVarint(long value) throws IOException
+        {
+            while ((value & ~0x7FL) != 0)
+            {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+
+    /**
+     * Reads a log
+     */
+    public static final class Reader implements Closeable
+    {
+        private final DataInputStream in;
+        private final Header header;
+        private final List<String> types = new ArrayList<>();
+        private long lastTick = 0;
+
+        public Reader(InputStream in) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.readInt() != MAGIC)
+            {
+                throw new IOException("Not a tick log");
+            }
+            int version = this.in.readUnsignedByte();
+            if (version < 1 || version > VERSION)
+            {
+                throw new IOException("Unsupported tick log version " + version);
+            }
+            long seed = this.in.readLong();
+            int columns = (int) readVarint();
+            int rows = (int) readVarint();
+            long tickNanos = readVarint();
+            header = new Header(seed, columns, rows, tickNanos);
+        }
+
+        public Header getHeader()
+        {
+            return header;
+        }
+
+        /**
+         * Returns the next event, or null at the end of the log.
+         *
+         * @return
+         * @throws IOException
+         */
+        public Event next() throws IOException
+        {
+            int type;
+            try
+            {
+                type = in.readByte();
+            } catch (EOFException e)
+            {
+                return null;
+            }
+            long tick = lastTick + readVarint();
+            lastTick = tick;
+            switch (type)
+            {
+                case INPUT:
+                    return new Event(INPUT, tick, (char) readVarint(), null, 0, 0, 0);
+                case SPAWN:
+                    int index = (int) readVarint();
+                    if (index == types.size())
+                    {
+                        types.add(in.readUTF());
+                    }
+                    else if (index > types.size())
+                    {
+                        throw new IOException("Corrupt tick log, unknown entity type " + index);
+                    }
+                    String entityType = types.get(index);
+                    int x = unzigzag(readVarint());
+                    int y = unzigzag(readVarint());
+                    int z = unzigzag(readVarint());
+                    return new Event(SPAWN, tick, '\0', entityType, x, y, z);
+                case RESIZE:
+                    int columns = (int) readVarint();
+                    int rows = (int) readVarint();
+                    return new Event(RESIZE, tick, '\0', null, columns, rows, 0);
+                case END:
+                    return new Event(END, tick, '\0', null, 0, 0, 0);
+                default:
+                    throw new IOException("Corrupt tick log, unknown record type " + type);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+
+        private long readVarint() throws IOException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt tick log, varint too long");
+        }
+    }
+
+    private static String typeOf(Entity entity)
+    {
+        return entity.getType() == null ? "" : entity.getType();
+    }
+
+    private static long zigzag(int value)
+    {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long value)
+    {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+}
@@ -0,0 +1,278 @@
+package ranbato.term.Animation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding {@link ScheduledTask}s by deadline, so
+ * finding what has come due costs time in proportion to the number of tasks
+ * due, not the number waiting. Deadlines are non-negative longs in whatever
+ * unit the owner likes (the animation uses one wheel in ticks and one in
+ * nanoseconds of its clock).
+ * <p>
+ * The wheel has 11 levels of 64 slots, one level per 6 bits of the deadline.
+ * A task is kept on the level of the highest 6 bit digit where its deadline
+ * differs from the current time, in the slot for that digit. Moving the
+ * current time forward, everything below the highest digit that changed has
+ * come due, as has everything on that digit's level between the old and new
+ * digit. The tasks in the slot for the new digit are shared with the new
+ * time down to that digit, so they are placed again, falling to lower levels.
+ * Each task moves down at most once per level, and each slot list is doubly
+ * linked through the tasks themselves, so scheduling and cancelling are O(1)
+ * and nothing is allocated.
+ */
+final class TimingWheel
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = (Long.SIZE + SLOT_BITS - 1) / SLOT_BITS;
+    // list of tasks scheduled for a deadline that had already passed
+    private static final int DUE = LEVELS * SLOTS;
+
+    private final ScheduledTask[] heads = new ScheduledTask[DUE + 1];
+    private final ScheduledTask[] tails = new ScheduledTask[DUE + 1];
+    // bit per slot, set if the slot has any tasks
+    private final long[] occupied = new long[LEVELS];
+    private long current = 0;
+    private int size = 0;
+
+    int size()
+    {
+        return size;
+    }
+
+    long getCurrent()
+    {
+        return current;
+    }
+
+    /**
+     * Add a task, or move it if it is already scheduled. A deadline at or
+     * before the current time comes due the next time the wheel advances.
+     *
+     * @param task
+     * @param deadline
+     */
+    void schedule(ScheduledTask task, long deadline)
+    {
+        if (task.wheel != null)
+        {
+            task.wheel.cancel(task);
+        }
+        task.deadline = Math.max(deadline, 0);
+        task.wheel = this;
+        link(task, listFor(task.deadline));
+        size++;
+    }
+
+    /**
+     * Remove a task if it is waiting in this wheel.
+     *
+     * @param task
+     */
+    void cancel(ScheduledTask task)
+    {
+        if (task.wheel != this)
+        {
+            return;
+        }
+        unlink(task);
+        task.wheel = null;
+        size--;
+    }
+
+    /**
+     * Move the current time forward, adding the tasks that have come due to
+     * expired. The tasks are removed from the wheel before they are added, so
+     * they can be scheduled again straight away. Tasks come out roughly in
+     * deadline order: a task is never added after one due later than it on a
+     * different level, only tasks in the same slot come out in the order they
+     * were added.
+     *
+     * @param now
+     * @param expired
+     */
+    void advance(long now, List<ScheduledTask> expired)
+    {
+        takeAll(DUE, expired);
+        if (now <= current)
+        {
+            return;
+        }
+
+        int top = levelFor(now ^ current);
+        for (int level = 0; level < top; level++)
+        {
+            for (long bits = occupied[level]; bits != 0; bits &= bits - 1)
+            {
+                takeAll(level * SLOTS + Long.numberOfTrailingZeros(bits), expired);
+            }
+        }
+
+        int from = digit(current, top);
+        int to = digit(now, top);
+        // slots strictly between the old and new digit
+        long between = (-1L << (from + 1)) & ~(-1L << to);
+        for (long bits = occupied[top] & between; bits != 0; bits &= bits - 1)
+        {
+            takeAll(top * SLOTS + Long.numberOfTrailingZeros(bits), expired);
+        }
+
+        // the tasks in the new digit's slot get placed again relative to the new time
+        int cascade = top * SLOTS + to;
+        ScheduledTask task = heads[cascade];
+        heads[cascade] = null;
+        tails[cascade] = null;
+        occupied[top] &= ~(1L << to);
+        current = now;
+        while (task != null)
+        {
+            ScheduledTask next = task.next;
+            task.prev = null;
+            task.next = null;
+            if (task.deadline <= now)
+            {
+                task.wheel = null;
+                size--;
+                expired.add(task);
+            }
+            else
+            {
+                link(task, listFor(task.deadline));
+            }
+            task = next;
+        }
+    }
+
+    /**
+     * Set the current time, which may be earlier than it was, placing every
+     * task again relative to it. Used when the clock the wheel follows is
+     * replaced.
+     *
+     * @param now
+     */
+    void rebase(long now)
+    {
+        // chain every task together in list order, then place them all again
+        ScheduledTask first = null, last = null;
+        for (int list = 0; list <= DUE; list++)
+        {
+            if (heads[list] == null)
+            {
+                continue;
+            }
+            if (last == null)
+            {
+                first = heads[list];
+            }
+            else
+            {
+                last.next = heads[list];
+            }
+            last = tails[list];
+            heads[list] = null;
+            tails[list] = null;
+        }
+        Arrays.fill(occupied, 0);
+
+        current = Math.max(now, 0);
+        while (first != null)
+        {
+            ScheduledTask next = first.next;
+            link(first, listFor(first.deadline));
+            first = next;
+        }
+    }
+
+    private int listFor(long deadline)
+    {
+        if (deadline <= current)
+        {
+            return DUE;
+        }
+        int level = levelFor(deadline ^ current);
+        return level * SLOTS + digit(deadline, level);
+    }
+
+    private static int levelFor(long difference)
+    {
+        return (Long.SIZE - 1 - Long.numberOfLeadingZeros(difference)) / SLOT_BITS;
+    }
+
+    private static int digit(long time, int level)
+    {
+        return (int) (time >>> (level * SLOT_BITS)) & (SLOTS - 1);
+    }
+
+    private void takeAll(int list, List<ScheduledTask> expired)
+    {
+        ScheduledTask task = heads[list];
+        if (task == null)
+        {
+            return;
+        }
+        heads[list] = null;
+        tails[list] = null;
+        if (list < DUE)
+        {
+            occupied[list / SLOTS] &= ~(1L << (list % SLOTS));
+        }
+        while (task != null)
+        {
+            ScheduledTask next = task.next;
+            task.prev = null;
+            task.next = null;
+            task.wheel = null;
+            size--;
+            expired.add(task);
+            task = next;
+        }
+    }
+
+    private void link(ScheduledTask task, int list)
+    {
+        task.list = list;
+        task.prev = tails[list];
+        task.next = null;
+        if (tails[list] != null)
+        {
+            tails[list].next = task;
+        }
+        else
+        {
+            heads[list] = task;
+            if (list < DUE)
+            {
+                occupied[list / SLOTS] |= 1L << (list % SLOTS);
+            }
+        }
+        tails[list] = task;
+    }
+
+    private void unlink(ScheduledTask task)
+    {
+        int list = task.list;
+        if (task.prev != null)
+        {
+            task.prev.next = task.next;
+        }
+        else
+        {
+            heads[list] = task.next;
+        }
+        if (task.next != null)
+        {
+            task.next.prev = task.prev;
+        }
+        else
+        {
+            tails[list] = task.prev;
+        }
+        task.prev = null;
+        task.next = null;
+        if (heads[list] == null && list < DUE)
+        {
+            occupied[list / SLOTS] &= ~(1L << (list % SLOTS));
+        }
+    }
+}
@@ -2,21 +2,33 @@ package ranbato.term;
 
 import com.googlecode.lanterna.TerminalSize;
 import com.googlecode.lanterna.TextColor;
-import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.input.KeyType;
 import com.googlecode.lanterna.screen.Screen;
-import com.googlecode.lanterna.screen.TerminalScreen;
 import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
+import com.googlecode.lanterna.terminal.virtual.DefaultVirtualTerminal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ranbato.term.Animation.Animation;
+import ranbato.term.Animation.AnimationLoop;
 import ranbato.term.Animation.Entity;
+import ranbato.term.Animation.HeadlessRunner;
+import ranbato.term.Animation.PopulationController;
+import ranbato.term.Animation.SpawnerRegistry;
+import ranbato.term.Animation.Sprite;
+import ranbato.term.Animation.SpriteBundle;
+import ranbato.term.Animation.TickClock;
+import ranbato.term.Animation.TickLog;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class TermTest
 {
@@ -66,68 +78,521 @@ public class TermTest
 // yes this is a total hack
     static Screen screen;
 
-    private Random rand = new Random();
+    // the Perl version waits up to a tenth of a second for input between frames
+    private static final int TICKS_PER_SECOND = 10;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1) / TICKS_PER_SECOND;
 
+    // how many divergences to describe when a replay doesn't match its log
+    private static final int MAX_REPORTED_DIVERGENCES = 10;
 
+    // fish species in the sprite bundle, each has a right and left facing sprite
+    private static final int FISH_SPECIES = 8;
+    // the colors rand_color picks from
+    private static final String RAND_COLORS = "cCrRyYbBgGmM";
+    private static final String[] WATER_LINE_SEGMENTS = {
+            "~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~",
+            "^^^^ ^^^  ^^^   ^^^    ^^^^      ",
+            "^^^^      ^^^^     ^^^    ^^     ",
+            "^^      ^^^^      ^^^    ^^^^^^  "
+    };
+
+    // random objects: how many at once, the most physical entities there can be
+    // for one to be added, and how long before the same kind can be added again
+    private static final int RANDOM_OBJECTS = 1;
+    private static final int PHYSICAL_BUDGET = 256;
+    private static final Duration RANDOM_OBJECT_COOLDOWN = Duration.ofSeconds(20);
+    // what a cycle may cost before the fish and seaweed are thinned out,
+    // half a tick leaves the rest for the terminal
+    private static final long POPULATION_TARGET_NANOS = TICK_NANOS / 2;
+    // the most bubbles there can be per fish at full density
+    private static final int BUBBLES_PER_FISH = 2;
+
+    private final long seed;
+    // each spawner gets its own stream split from the seed, so adding a spawner
+    // or changing how many numbers one uses doesn't change what the others do
+    private final SplittableRandom seaweedRandom;
+    private final SplittableRandom fishRandom;
+    private final SplittableRandom randomObjectRandom;
+
+    // precompiled from src/main/sprites/asciiquarium.sprites
+    private final SpriteBundle sprites;
+    private final SpawnerRegistry randomObjects;
+    // keep the fish and seaweed topped up, to the counts the controller sets
+    private final SpawnerRegistry fishSpawner;
+    private final SpawnerRegistry seaweedSpawner;
+    private final PopulationController populations;
+    private int bubbles;
+    private int bubbleLimit;
+    // reused for every bubble and splat, so they come from the entity pool
+    private final Entity.Builder bubble;
+    private final Entity.Builder splat;
+
+    private Animation animation;
+    private TickLog.Writer recorder;
+
+    public TermTest(long seed) throws IOException
+    {
+        this.seed = seed;
+        SplittableRandom random = new SplittableRandom(seed);
+        seaweedRandom = random.split();
+        fishRandom = random.split();
+        randomObjectRandom = random.split();
+        sprites = SpriteBundle.load("asciiquarium");
+
+        bubble = Entity.newBuilder().withType("bubble").withSprite(sprites.get("bubble"))
+                .withCallback_args(0, -1, 0, .1f).withDie_offscreen(true).withPhysical(true)
+                .withColl_handler(TermTest::bubble_collision).withDeath_cb(this::bubble_died);
+        splat = Entity.newBuilder().withType("splat").withSprite(sprites.get("splat"))
+                .withCallback_args(0, 0, 0, .25f).withDie_frame(15);
+
+        randomObjects = new SpawnerRegistry(random.split());
+        randomObjects.setTarget(RANDOM_OBJECTS);
+        randomObjects.setPhysicalBudget(PHYSICAL_BUDGET);
+        // picked evenly, like init_random_objects/random_object
+        register_random_object("ship", this::add_ship, 0);
+        register_random_object("whale", this::add_whale, 0);
+        register_random_object("monster", this::add_monster, 0);
+        register_random_object("big_fish", this::add_big_fish, 0);
+        // the teeth and the hook point are physical
+        register_random_object("shark", this::add_shark, 1);
+        register_random_object("fishhook", this::add_fishhook, 1);
+        register_random_object("swan", this::add_swan, 0);
+        register_random_object("ducks", this::add_ducks, 0);
+        register_random_object("dolphins", this::add_dolphins, 0);
+
+        fishSpawner = new SpawnerRegistry(random.split());
+        fishSpawner.register("fish", this::add_fish).withPhysical(1);
+        seaweedSpawner = new SpawnerRegistry(random.split());
+        seaweedSpawner.register("seaweed", this::add_seaweed);
+        populations = new PopulationController(POPULATION_TARGET_NANOS);
+        populations.register("seaweed", TermTest::seaweed_count, seaweedSpawner::setTarget).withMin(1);
+        populations.register("fish", TermTest::fish_count, fishSpawner::setTarget).withMin(1);
+        populations.register("bubbles", () -> fish_count() * BUBBLES_PER_FISH, limit -> bubbleLimit = limit);
+    }
+
+    private void register_random_object(String name, SpawnerRegistry.Factory factory, int physical)
+    {
+        randomObjects.register(name, factory).withWeight(1).withMaxConcurrent(1)
+                .withCooldown(RANDOM_OBJECT_COOLDOWN).withPhysical(physical);
+    }
+
+    /**
+     * usage: [--seed N] [--record file] [--headless [ticks [columns rows]]]
+     *        --replay file
+     *
+     * With --seed or --record the run is deterministic: all randomness comes
+     * from the seed and time moves on with the animation cycles instead of the
+     * wall clock, so the same seed and input give the same scene every time.
+     * --record writes the seed, input, every spawn and every change of the
+     * terminal size to a tick log, which --replay runs again headless at full
+     * speed, resizing its screen on the same ticks and checking the spawns match.
+     *
+     * @param args
+     */
     public static void main(String[] args)
     {
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        String seedOption = take_option(rest, "--seed");
+        String recordFile = take_option(rest, "--record");
+        String replayFile = take_option(rest, "--replay");
 
-        TermTest termTest = new TermTest();
+        if(replayFile != null) {
+            run_replay(replayFile);
+            return;
+        }
+
+        boolean deterministic = seedOption != null || recordFile != null;
+        long seed = seedOption != null ? Long.parseLong(seedOption) : new SplittableRandom().nextLong();
+        logger.debug("seed {}", seed);
+        TermTest termTest;
+        try
+        {
+            termTest = new TermTest(seed);
+        } catch (IOException e)
+        {
+            logger.error("Failed to load the sprites", e);
+            return;
+        }
+        // the controller goes by wall clock timings, which would change what a seed spawns
+        termTest.populations.setEnabled(!deterministic);
+
+        if(rest.size() > 0 && rest.get(0).equals("--headless")) {
+            termTest.run_headless(rest, deterministic, recordFile);
+            return;
+        }
 
         DefaultTerminalFactory def = new DefaultTerminalFactory();
         def.setForceTextTerminal(true);
         def.setInitialTerminalSize(new TerminalSize(80,80));
         try (Terminal terminal = def.createTerminal())
         {
-            screen = new TerminalScreen(terminal);
+            Animation animation = new Animation(terminal);
+            screen = animation.getScreen();
+            animation.getMetrics().register("TermTest");
+            termTest.populations.register("TermTest");
+
+            if(deterministic) {
+                use_tick_clock(animation, TICK_NANOS);
+            }
+            if(recordFile != null) {
+                termTest.start_recording(animation, recordFile);
+            }
+            termTest.add_scene(animation);
+
+            AnimationLoop loop = new AnimationLoop(animation, TICKS_PER_SECOND);
+            loop.setInputHandler(key -> {
+                if(key.getKeyType() == KeyType.EOF) {
+                    loop.stop();
+                } else if(key.getKeyType() == KeyType.Character) {
+                    termTest.record_input(key.getCharacter());
+                    switch (key.getCharacter())
+                    {
+                        case 'q':
+                            loop.stop();
+                            break;
+                        case 'p':
+                            loop.setPaused(!loop.isPaused());
+                            break;
+                        case 'r':
+                            termTest.redraw_scene();
+                            break;
+                    }
+                }
+            });
+            loop.run();
+
+            termTest.stop_recording();
+            animation.end();
+
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
 
-            screen.setCursorPosition(null);
 
-            screen.startScreen();
+    }
 
-            TextGraphics graphics = screen.newTextGraphics();
-            int row = 0;
-            for(Map.Entry entry:Animation.COLOR_MAP.entrySet()){
-                graphics.setForegroundColor((TextColor)entry.getValue());
-                graphics.putString(1,row++,entry.getKey().toString());
+    /**
+     * Soak test without a terminal, runs the scene flat out and prints the throughput.
+     *
+     * usage: --headless [ticks [columns rows]]
+     *
+     * @param args          the arguments left after the options
+     * @param deterministic use the tick clock
+     * @param recordFile    where to write the tick log, or null
+     */
+    private void run_headless(List<String> args, boolean deterministic, String recordFile)
+    {
+        long ticks = args.size() > 1 ? Long.parseLong(args.get(1)) : 10000;
+        int columns = args.size() > 3 ? Integer.parseInt(args.get(2)) : 80;
+        int rows = args.size() > 3 ? Integer.parseInt(args.get(3)) : 24;
+
+        try
+        {
+            Animation animation = Animation.headless(columns, rows);
+            screen = animation.getScreen();
+            if(deterministic) {
+                use_tick_clock(animation, TICK_NANOS);
             }
-            screen.refresh();
+            if(recordFile != null) {
+                start_recording(animation, recordFile);
+            }
+            add_scene(animation);
+
+            HeadlessRunner.Report report = new HeadlessRunner(animation).run(ticks);
+            System.out.println(report);
+            System.out.println(animation.getMetrics());
+            System.out.println(randomObjects);
+            System.out.println(populations);
 
-            long startTime = System.currentTimeMillis();
-            while(System.currentTimeMillis() - startTime < 20000) {
-                // The call to pollInput() is not blocking, unlike readInput()
-                if(screen.pollInput() != null) {
+            stop_recording();
+            animation.end();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run a recorded tick log again headless, as fast as it will go, feeding
+     * in the recorded input and resizes on the same ticks and checking every
+     * spawn matches the log. Prints the throughput and any divergences.
+     *
+     * @param file
+     */
+    private static void run_replay(String file)
+    {
+        List<TickLog.Event> events = new ArrayList<>();
+        TickLog.Header header;
+        try (TickLog.Reader reader = new TickLog.Reader(new FileInputStream(file)))
+        {
+            header = reader.getHeader();
+            TickLog.Event event;
+            while ((event = reader.next()) != null) {
+                events.add(event);
+            }
+        } catch (IOException e)
+        {
+            logger.error("Failed to read tick log {}", file, e);
+            return;
+        }
+        if(events.isEmpty()) {
+            System.out.println("Nothing to replay in " + file);
+            return;
+        }
+        long endTick = events.get(events.size() - 1).getTick();
+
+        try
+        {
+            TermTest termTest = new TermTest(header.getSeed());
+            termTest.populations.setEnabled(false);
+            // like Animation.headless, but kept to resize it
+            DefaultVirtualTerminal terminal = new DefaultVirtualTerminal(new TerminalSize(header.getColumns(), header.getRows()));
+            Animation animation = new Animation(terminal);
+            screen = animation.getScreen();
+            use_tick_clock(animation, header.getTickNanos());
+
+            Replay replay = termTest.new Replay(events, terminal);
+            animation.setSpawnListener(replay::spawned);
+            replay.inputs(0);
+            termTest.add_scene(animation);
+
+            HeadlessRunner runner = new HeadlessRunner(animation);
+            runner.setBeforeTick(replay::inputs);
+            HeadlessRunner.Report report = runner.run(endTick - animation.getTick());
+            replay.inputs(animation.getTick());
+            replay.finish();
+
+            System.out.println("replayed " + file + " (seed " + header.getSeed() + ", "
+                    + header.getColumns() + "x" + header.getRows() + ")");
+            System.out.println(report);
+            System.out.println(animation.getMetrics());
+            System.out.println(replay.divergences == 0 ? "matched the log" : replay.divergences + " divergences from the log");
+
+            animation.end();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Steps through a tick log while it is replayed
+     */
+    private class Replay
+    {
+        private final List<TickLog.Event> events;
+        private final DefaultVirtualTerminal terminal;
+        private int next = 0;
+        private int divergences = 0;
+
+        Replay(List<TickLog.Event> events, DefaultVirtualTerminal terminal)
+        {
+            this.events = events;
+            this.terminal = terminal;
+        }
+
+        /**
+         * Apply the input and resizes recorded for a tick.
+         *
+         * @param tick
+         */
+        void inputs(long tick)
+        {
+            while (next < events.size() && events.get(next).getTick() <= tick) {
+                TickLog.Event event = events.get(next);
+                if(event.getType() == TickLog.INPUT) {
+                    if(event.getKey() == 'r') {
+                        redraw_scene();
+                    }
+                } else if(event.getType() == TickLog.RESIZE) {
+                    terminal.setTerminalSize(new TerminalSize(event.getColumns(), event.getRows()));
+                    animation.update_term_size();
+                } else {
                     break;
                 }
-                try {
-                    Thread.sleep(1);
+                next++;
+            }
+        }
+
+        /**
+         * Check a spawn against the next one in the log.
+         *
+         * @param entity
+         */
+        void spawned(Entity entity)
+        {
+            TickLog.Event expected = next < events.size() ? events.get(next) : null;
+            if(expected != null && expected.getType() == TickLog.SPAWN) {
+                next++;
+                if(expected.getTick() == animation.getTick() && expected.matches(entity)) {
+                    return;
                 }
-                catch(InterruptedException ignore) {
-                    break;
+            }
+            diverged("expected " + (expected == null ? "end of log" : expected) + ", got tick "
+                    + animation.getTick() + ": spawn " + entity.getType() + " at "
+                    + entity.getX() + "," + entity.getY() + "," + entity.getZ());
+        }
+
+        void finish()
+        {
+            for (; next < events.size(); next++) {
+                if(events.get(next).getType() == TickLog.SPAWN) {
+                    diverged("expected " + events.get(next) + ", got nothing");
                 }
             }
-            Entity castle = termTest.add_castle();
-            Animation animation = new Animation();
-            animation.add_entity(castle);
-            animation.add_entity(termTest.add_environment());
-            animation.add_entity(termTest.add_all_seaweed());
-            animation.build_screen();
+        }
 
-            screen.refresh();
-            Thread.sleep(15000);
+        private void diverged(String description)
+        {
+            if(divergences++ < MAX_REPORTED_DIVERGENCES) {
+                logger.warn("Replay diverged: {}", description);
+            }
+        }
+    }
+
+    /**
+     * Remove and return an option and its value from the arguments.
+     *
+     * @param args
+     * @param option
+     * @return the value, or null if the option isn't there
+     */
+    private static String take_option(List<String> args, String option)
+    {
+        int i = args.indexOf(option);
+        if(i < 0) {
+            return null;
+        }
+        if(i + 1 >= args.size()) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        String value = args.get(i + 1);
+        args.subList(i, i + 2).clear();
+        return value;
+    }
 
-            screen.stopScreen();
+    private static void use_tick_clock(Animation animation, long tickNanos)
+    {
+        animation.setClock(new TickClock(animation, Instant.EPOCH, Duration.ofNanos(tickNanos)));
+    }
 
+    private void start_recording(Animation animation, String file) throws IOException
+    {
+        TerminalSize size = animation.getScreen().getTerminalSize();
+        recorder = new TickLog.Writer(new FileOutputStream(file),
+                new TickLog.Header(seed, size.getColumns(), size.getRows(), TICK_NANOS));
+        animation.setSpawnListener(entity -> {
+            try
+            {
+                recorder.spawn(animation.getTick(), entity);
+            } catch (IOException e)
+            {
+                logger.error("Failed to record spawn", e);
+            }
+        });
+    }
 
+    private void record_input(char key)
+    {
+        if(recorder == null) {
+            return;
+        }
+        try
+        {
+            recorder.input(animation.getTick(), key);
         } catch (IOException e)
         {
-            e.printStackTrace();
-        } catch (InterruptedException e)
+            logger.error("Failed to record input", e);
+        }
+    }
+
+    // a resize changes what spawns where, so the replay has to make it too
+    private void record_resize(TerminalSize size)
+    {
+        if(recorder == null) {
+            return;
+        }
+        try
         {
-            e.printStackTrace();
+            recorder.resize(animation.getTick(), size.getColumns(), size.getRows());
+        } catch (IOException e)
+        {
+            logger.error("Failed to record resize", e);
         }
+    }
 
+    private void stop_recording()
+    {
+        if(recorder == null) {
+            return;
+        }
+        try
+        {
+            recorder.end(animation.getTick());
+            recorder.close();
+        } catch (IOException e)
+        {
+            logger.error("Failed to finish recording", e);
+        }
+        recorder = null;
+    }
 
+    // redraw, laying the scene out again if the terminal size has changed
+    private void redraw_scene()
+    {
+        animation.update_term_size();
+        animation.redraw_screen();
+    }
+
+    /**
+     * Lay the scene out again for a new terminal size, keeping everything
+     * that is alive: the waterline is tiled to the new width, the castle and
+     * seaweed are moved to the new bottom of the screen, and the fish and
+     * seaweed counts follow the new size. Fish left below the new bottom swim
+     * offscreen and are replaced.
+     *
+     * @param oldSize
+     * @param size
+     */
+    private void relayout(TerminalSize oldSize, TerminalSize size)
+    {
+        record_resize(size);
+        for (int i = 0; i < WATER_LINE_SEGMENTS.length; i++) {
+            Entity water_line = animation.entity("water_seg_" + i);
+            if(water_line != null) {
+                water_line.setShape(water_line(i, size.getColumns()));
+            }
+        }
+
+        Entity castle = animation.entity("castle");
+        if(castle != null) {
+            castle.setX(size.getColumns() - 32);
+            castle.setY(size.getRows() - 13);
+        }
+
+        // keep the seaweed spread across the bottom in the same proportions
+        float spread = (float) (size.getColumns() - 2) / Math.max(oldSize.getColumns() - 2, 1);
+        for (Entity entity : animation.get_entities_of_type("seaweed")) {
+            entity.setX(1 + (entity.getExactX() - 1) * spread);
+            entity.setY(size.getRows() - entity.getHeight());
+        }
+
+        populations.refresh();
+        logger.debug("laid out again for {}x{}", size.getColumns(), size.getRows());
+    }
+
+    private void add_scene(Animation animation)
+    {
+        this.animation = animation;
+        animation.setResizeListener(this::relayout);
+        animation.add_entity(add_environment());
+        animation.add_entity(add_castle());
+        bubbles = 0;
+        seaweedSpawner.start(animation);
+        fishSpawner.start(animation);
+        populations.start(animation);
+        randomObjects.start(animation);
     }
 
     /**
@@ -195,24 +660,10 @@ public class TermTest
 
     private List<Entity> add_environment() {
 
-    String [] water_line_segment = new String[]{
-            "~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~",
-            "^^^^ ^^^  ^^^   ^^^    ^^^^      ",
-            "^^^^      ^^^^     ^^^    ^^     ",
-            "^^      ^^^^      ^^^    ^^^^^^  "
-    };
-
-	// tile the segments so they stretch across the screen
-    int segment_size = water_line_segment[0].length();
-        int segment_repeat = (screen.getTerminalSize().getColumns()/segment_size) + 1;
-    for(int i = 0;i<water_line_segment.length;i++) {
-        water_line_segment[i] = repeat(water_line_segment[i],segment_repeat);
-    }
-
-    List<Entity> entityList = new ArrayList<>(water_line_segment.length);
-    for(int i = 0;i<water_line_segment.length;i++) {
+    List<Entity> entityList = new ArrayList<>(WATER_LINE_SEGMENTS.length);
+    for(int i = 0;i<WATER_LINE_SEGMENTS.length;i++) {
         Entity entity = Entity.newBuilder().withName("water_seg_"+i).withType("waterline")
-        .withShape(water_line_segment[i]).withPosition(0,i+5,Depth.valueOf("water_line"+i).getDepth())
+        .withShape(water_line(i, screen.getTerminalSize().getColumns())).withPosition(0,i+5,Depth.valueOf("water_line"+i).getDepth())
                 .withDefault_color(TextColor.ANSI.CYAN).withDepth(22).withPhysical(true).build();
 
         entityList.add(entity);
@@ -221,62 +672,31 @@ public class TermTest
     return entityList;
 }
 
+    // tile a segment so it stretches across the screen
+    private static String water_line(int segment, int columns) {
+        int segment_size = WATER_LINE_SEGMENTS[segment].length();
+        int segment_repeat = (columns / segment_size) + 1;
+        return repeat(WATER_LINE_SEGMENTS[segment], segment_repeat);
+    }
+
     private  Entity add_castle()
     {
-        String castle_image = "\n" +
-                "               T~~\n" +
-                "               |\n" +
-                "              /^\\\n" +
-                "             /   \\\n" +
-                " _   _   _  /     \\  _   _   _\n" +
-                "[ ]_[ ]_[ ]/ _   _ \\[ ]_[ ]_[ ]\n" +
-                "|_=__-_ =_|_[ ]_[ ]_|_=-___-__|\n" +
-                " | _- =  | =_ = _    |= _=   |\n" +
-                " |= -[]  |- = _ =    |_-=_[] |\n" +
-                " | =_    |= - ___    | =_ =  |\n" +
-                " |=  []- |-  /| |\\   |=_ =[] |\n" +
-                " |- =_   | =| | | |  |- = -  |\n" +
-                " |_______|__|_|_|_|__|_______|\n";
-
-        String castle_mask = "\n" +
-                "                RR\n" +
-                "\n" +
-                "              yyy\n" +
-                "             y   y\n" +
-                "            y     y\n" +
-                "           y       y\n" +
-                "\n" +
-                "\n" +
-                "\n" +
-                "              yyy\n" +
-                "             yy yy\n" +
-                "            y y y y\n" +
-                "            yyyyyyy\n";
-
         TerminalSize size = screen.getTerminalSize();
-        Entity temp = Entity.newBuilder().withName("castle").withShape(castle_image).withColorMask(castle_mask).withPosition(size.getColumns()-32, size.getRows()-13, Depth.castle.getDepth()).withDefault_color(TextColor.ANSI.WHITE).build();
+        Entity temp = Entity.newBuilder().withName("castle").withSprite(sprites.get("castle")).withPosition(size.getColumns()-32, size.getRows()-13, Depth.castle.getDepth()).build();
 
         return temp;
     }
 
 
-    private List<Entity> add_all_seaweed() {
+    private static int seaweed_count() {
 	// figure out how many seaweed to add by the width of the screen
-    int seaweed_count = screen.getTerminalSize().getColumns() / 15;
-    List<Entity> entityList = new ArrayList<>(seaweed_count);
-    for (int i = 0;i<seaweed_count;i++) {
-        entityList.add(add_seaweed());
-    }
-
-    logger.debug("'{}' seaweeds created",entityList.size());
-
-    return entityList;
+    return screen.getTerminalSize().getColumns() / 15;
 }
 
-    private Entity add_seaweed (Object... args) {
+    private Entity add_seaweed (Animation animation) {
     final String [] SEAWEED_IMAGE = {" )\n(\n )\n(\n )\n(\n )\n(\n )\n(\n )\n(\n )\n","(\n )\n(\n )\n(\n )\n(\n )\n(\n )\n(\n )\n(\n"};
 
-    int height = rand.nextInt(4) + 3;
+    int height = seaweedRandom.nextInt(4) + 3;
 //        for my $i (1..$height) {
 //            my $left_side = $i%2;
 //            my $right_side = !$left_side;
@@ -287,17 +707,319 @@ public class TermTest
     seaweed_image[0]=SEAWEED_IMAGE[0].substring(0,nthIndexOf(SEAWEED_IMAGE[0],"\n",height));
     seaweed_image[1]=SEAWEED_IMAGE[1].substring(0,nthIndexOf(SEAWEED_IMAGE[1],"\n",height));
 
-    int x = rand.nextInt(screen.getTerminalSize().getColumns()-2) + 1;
+    int x = seaweedRandom.nextInt(screen.getTerminalSize().getColumns()-2) + 1;
     int y = screen.getTerminalSize().getRows() - height;
-    double anim_speed = (rand.nextDouble()*0.05) + 0.25;
-    Entity entity = Entity.newBuilder().withName("seaweed" + rand.nextFloat()).withShape(seaweed_image).withPosition(x,y,Depth.seaweed.getDepth())
+    double anim_speed = (seaweedRandom.nextDouble()*0.05) + 0.25;
+    Entity entity = Entity.newBuilder().withName("seaweed" + seaweedRandom.nextLong()).withType("seaweed").withShape(seaweed_image).withPosition(x,y,Depth.seaweed.getDepth())
             .withCallback_args(0,0,0,(float)anim_speed)
-            .withDie_time(Instant.now().plus(8,ChronoUnit.MINUTES).plus(Math.round(rand.nextDouble()*4),ChronoUnit.SECONDS)) // seaweed lives for 8 to 12 minutes
-            .withDeath_cb(this::add_seaweed).withDefault_color(TextColor.ANSI.GREEN).build();
+            .withDie_time(animation.now().plus(8,ChronoUnit.MINUTES).plus(seaweedRandom.nextInt(4*60),ChronoUnit.SECONDS)) // seaweed lives for 8 to 12 minutes
+            .withDefault_color(TextColor.ANSI.GREEN).build();
+    animation.add_entity(entity);
 
     return entity;
 
 }
 
-}
+    /**
+     * Pick a color for each palette slot of a mask, as rand_color picks one for
+     * each digit. Like the Perl, it never picks the last color.
+     *
+     * @param random
+     * @return the palette, see {@link Entity#setPalette(String)}
+     */
+    private static String rand_color(SplittableRandom random) {
+        char[] colors = new char[9];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = RAND_COLORS.charAt(random.nextInt(RAND_COLORS.length() - 1));
+        }
+        return new String(colors);
+    }
+
+    private static int fish_count() {
+        // figure out how many fish to add by the size of the screen,
+        // minus the stuff above the water
+        TerminalSize size = screen.getTerminalSize();
+        return (size.getRows() - 9) * size.getColumns() / 350;
+    }
 
+    private Entity add_fish(Animation animation) {
+        int fish_num = fishRandom.nextInt(FISH_SPECIES * 2);
+        boolean left = fish_num % 2 == 1;
+        Sprite sprite = sprites.get("fish" + (fish_num / 2 + 1) + (left ? ".left" : ".right"));
+        float speed = (float) (fishRandom.nextDouble() * 2 + .25);
+        int depth = fishRandom.nextInt(Depth.fish_end.getDepth() - Depth.fish_start.getDepth()) + Depth.fish_start.getDepth();
+        String palette = rand_color(fishRandom);
+
+        TerminalSize size = screen.getTerminalSize();
+        int max_height = 9;
+        int min_height = size.getRows() - sprite.getHeight();
+        int y = fishRandom.nextInt(Math.max(min_height - max_height, 1)) + max_height;
+        int x = 1 - sprite.getWidth();
+        if(left) {
+            speed *= -1;
+            x = size.getColumns() - 2;
+        }
+
+        Entity fish = Entity.newBuilder().withType("fish").withSprite(sprite).withPalette(palette)
+                .withPosition(x, y, depth)
+                .withCallback(this::fish_callback).withCallback_args(speed, 0, 0, 0)
+                .withDie_offscreen(true)
+                .withPhysical(true).withColl_handler(this::fish_collision).build();
+        animation.add_entity(fish);
+        return fish;
+    }
+
+    private void fish_callback(Entity fish, Animation animation) {
+        if(fishRandom.nextInt(100) > 97 && bubbles < bubbleLimit) {
+            add_bubble(fish, animation);
+        }
+        fish.move_entity(animation);
+    }
+
+    private void fish_collision(Entity fish, Animation animation) {
+        for (Entity col_obj : fish.getCollisions()) {
+            if("teeth".equals(col_obj.getType())) {
+                add_splat(animation, col_obj.getX(), col_obj.getY(), col_obj.getZ());
+                fish.kill();
+                break;
+            } else if("hook_point".equals(col_obj.getType())) {
+                retract(col_obj);
+                retract(fish);
+                // get the hook and line
+                for (Entity entity : animation.get_entities_of_type("fishhook")) {
+                    retract(entity);
+                }
+                for (Entity entity : animation.get_entities_of_type("fishline")) {
+                    retract(entity);
+                }
+                break;
+            }
+        }
+    }
+
+    // add an air bubble to a fish
+    private void add_bubble(Entity fish, Animation animation) {
+        int x = fish.getX();
+        // moving right
+        if(fish.getCallback_args()[0] > 0) {
+            x += fish.getWidth();
+        }
+        int y = fish.getY() + fish.getHeight() / 2;
+        // bubble always goes on top of the fish
+        bubble.withPosition(x, y, fish.getZ() - 1);
+        animation.spawn_entity(bubble);
+        bubbles++;
+    }
+
+    private Entity bubble_died(Object... args) {
+        bubbles--;
+        return null;
+    }
+
+    private static void bubble_collision(Entity bubble, Animation animation) {
+        for (Entity col_obj : bubble.getCollisions()) {
+            if("waterline".equals(col_obj.getType())) {
+                bubble.kill();
+                break;
+            }
+        }
+    }
+
+    private void add_splat(Animation animation, int x, int y, int z) {
+        splat.withPosition(x - 4, y - 2, z - 2);
+        animation.spawn_entity(splat);
+    }
+
+    // pull the fishhook, line and whatever got caught back to the surface
+    private static void retract(Entity entity) {
+        entity.setPhysical(false);
+        if("fish".equals(entity.getType())) {
+            entity.setZ(Depth.water_gap2.getDepth());
+        }
+        entity.setCallback(TermTest::reel_in);
+    }
+
+    private static void reel_in(Entity entity, Animation animation) {
+        entity.setY(entity.getExactY() - 1);
+    }
+
+    // lower the fishhook until it reaches 1/4 from the bottom
+    private static void fishhook_cb(Entity entity, Animation animation) {
+        if(entity.getY() + entity.getHeight() < animation.height() * .75) {
+            entity.setY(entity.getExactY() + 1);
+        }
+    }
+
+    private Entity add_shark(Animation animation) {
+        boolean left = randomObjectRandom.nextInt(2) == 1;
+        int x = -53;
+        int y = randomObjectRandom.nextInt(Math.max(animation.height() - (10 + 9), 1)) + 9;
+        int teeth_x = -9;
+        int teeth_y = y + 7;
+        float speed = 2;
+        if(left) {
+            speed *= -1;
+            x = animation.width() - 2;
+            teeth_x = x + 9;
+        }
+
+        Entity teeth = Entity.newBuilder().withType("teeth").withShape("*")
+                .withPosition(teeth_x, teeth_y, Depth.shark.getDepth() + 1)
+                .withDepth(Depth.fish_end.getDepth() - Depth.fish_start.getDepth())
+                .withCallback_args(speed, 0, 0, 0).withPhysical(true).build();
+        animation.add_entity(teeth);
+        long teethHandle = teeth.getHandle();
+
+        // when the shark dies, kill the teeth too, they do the actual collision
+        Entity shark = Entity.newBuilder().withType("shark").withSprite(sprites.get(left ? "shark.left" : "shark.right"))
+                .withPosition(x, y, Depth.shark.getDepth())
+                .withCallback_args(speed, 0, 0, 0).withDie_offscreen(true)
+                .withDeath_cb(args -> {
+                    animation.del_entity(teethHandle);
+                    return null;
+                }).build();
+        animation.add_entity(shark);
+        return shark;
+    }
+
+    private Entity add_fishhook(Animation animation) {
+        int x = 10 + randomObjectRandom.nextInt(Math.max(animation.width() - 20, 1));
+        int y = -4;
+        int point_x = x + 1;
+        int point_y = y + 2;
+
+        Entity line = Entity.newBuilder().withType("fishline").withSprite(sprites.get("fishline"))
+                .withPosition(x + 7, y - 50, Depth.water_line1.getDepth())
+                .withCallback(TermTest::fishhook_cb).build();
+        Entity point = Entity.newBuilder().withType("hook_point").withSprite(sprites.get("hook_point"))
+                .withPosition(point_x, point_y, Depth.shark.getDepth() + 1)
+                .withDepth(Depth.fish_end.getDepth() - Depth.fish_start.getDepth())
+                .withPhysical(true).withCallback(TermTest::fishhook_cb).build();
+        animation.add_entity(line);
+        animation.add_entity(point);
+        long lineHandle = line.getHandle();
+        long pointHandle = point.getHandle();
+
+        Entity hook = Entity.newBuilder().withType("fishhook").withSprite(sprites.get("fishhook"))
+                .withPosition(x, y, Depth.water_line1.getDepth())
+                .withDie_offscreen(true)
+                .withDeath_cb(args -> {
+                    animation.del_entity(lineHandle);
+                    animation.del_entity(pointHandle);
+                    return null;
+                })
+                .withCallback(TermTest::fishhook_cb).build();
+        animation.add_entity(hook);
+        return hook;
+    }
+
+    /**
+     * Add a random object that crosses the screen facing a random direction.
+     *
+     * @param name   the sprite, without .right or .left
+     * @param speed  the speed moving right
+     * @param startX where it starts moving right, moving left it starts at the right edge
+     * @param y
+     * @param depth
+     * @param frameSpeed
+     * @return
+     */
+    private Entity add_crossing(Animation animation, String name, float speed, int startX, int y, Depth depth,
+                                float frameSpeed) {
+        boolean left = randomObjectRandom.nextInt(2) == 1;
+        int x = startX;
+        if(left) {
+            speed *= -1;
+            x = animation.width() - 2;
+        }
+        Entity entity = Entity.newBuilder().withType(name).withSprite(sprites.get(name + (left ? ".left" : ".right")))
+                .withPosition(x, y, depth.getDepth())
+                .withCallback_args(speed, 0, 0, frameSpeed).withDie_offscreen(true).build();
+        animation.add_entity(entity);
+        return entity;
+    }
+
+    private Entity add_ship(Animation animation) {
+        return add_crossing(animation, "ship", 1, -24, 0, Depth.water_gap1, 0);
+    }
+
+    private Entity add_whale(Animation animation) {
+        return add_crossing(animation, "whale", 1, -18, 0, Depth.water_gap2, 1);
+    }
+
+    private Entity add_monster(Animation animation) {
+        return add_crossing(animation, "monster", 2, -64, 2, Depth.water_gap2, .25f);
+    }
+
+    private Entity add_swan(Animation animation) {
+        return add_crossing(animation, "swan", 1, -10, 1, Depth.water_gap3, .25f);
+    }
+
+    private Entity add_ducks(Animation animation) {
+        return add_crossing(animation, "ducks", 1, -30, 5, Depth.water_gap3, .25f);
+    }
+
+    private Entity add_big_fish(Animation animation) {
+        boolean left = randomObjectRandom.nextInt(2) == 1;
+        int x = -34;
+        float speed = 3;
+        if(left) {
+            x = animation.width() - 1;
+            speed *= -1;
+        }
+        int max_height = 9;
+        int min_height = animation.height() - 15;
+        int y = randomObjectRandom.nextInt(Math.max(min_height - max_height, 1)) + max_height;
+        Entity entity = Entity.newBuilder().withType("big_fish").withSprite(sprites.get(left ? "big_fish.left" : "big_fish.right"))
+                .withPalette(rand_color(randomObjectRandom))
+                .withPosition(x, y, Depth.shark.getDepth())
+                .withCallback_args(speed, 0, 0, 0).withDie_offscreen(true).build();
+        animation.add_entity(entity);
+        return entity;
+    }
+
+    private Entity add_dolphins(Animation animation) {
+        boolean left = randomObjectRandom.nextInt(2) == 1;
+        Sprite sprite = sprites.get(left ? "dolphin.left" : "dolphin.right");
+        int x = -13;
+        float speed = 1;
+        // how far apart the dolphins are
+        int distance = 15;
+        if(left) {
+            speed *= -1;
+            distance *= -1;
+            x = animation.width() - 2;
+        }
+
+        float[] up = {speed, -.5f, 0, .5f};
+        float[] down = {speed, .5f, 0, .5f};
+        float[] glide = {speed, 0, 0, .5f};
+        float[][] path = new float[36][];
+        Arrays.fill(path, 0, 14, up);
+        Arrays.fill(path, 14, 16, glide);
+        Arrays.fill(path, 16, 30, down);
+        Arrays.fill(path, 30, 36, glide);
+
+        // they start offscreen, so only the lead dies offscreen until it tells the others to
+        Entity dolphin3 = Entity.newBuilder().withType("dolphin").withSprite(sprite).withDefault_color(TextColor.ANSI.BLUE)
+                .withPosition(x - distance * 2, 8, Depth.water_gap3.getDepth())
+                .withCallback_path(0, path).build();
+        Entity dolphin2 = Entity.newBuilder().withType("dolphin").withSprite(sprite).withDefault_color(TextColor.ANSI.BLUE)
+                .withPosition(x - distance, 2, Depth.water_gap3.getDepth())
+                .withCallback_path(12, path).build();
+        Entity dolphin1 = Entity.newBuilder().withType("dolphin").withSprite(sprite).withDefault_color(TextColor.ANSI.CYAN)
+                .withPosition(x, 5, Depth.water_gap3.getDepth())
+                .withCallback_path(24, path).withDie_offscreen(true)
+                .withDeath_cb(args -> {
+                    dolphin2.setDie_offscreen(true);
+                    dolphin3.setDie_offscreen(true);
+                    return null;
+                }).build();
+        animation.add_entity(dolphin3);
+        animation.add_entity(dolphin2);
+        animation.add_entity(dolphin1);
+        // the last one gone is the last one in line
+        return dolphin3;
+    }
+
+}
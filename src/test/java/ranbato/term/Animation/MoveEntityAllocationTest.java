@@ -0,0 +1,113 @@
+package ranbato.term.Animation;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks what a warmed up animation allocates per entity per cycle, when its
+ * entities all move with the default callback and wrap around the screen.
+ * <p>
+ * Updating allocates nothing per entity, and neither does composing a frame
+ * and writing it to the Lanterna screen. What animate() allocates beyond
+ * that is Lanterna's own, refreshing the screen builds a map of the changed
+ * cells and the positions and characters it sends to the terminal. Measured
+ * here at about 311 bytes per entity per cycle for a full redraw, and 138
+ * for incremental rendering and for cell buffering, which change the same
+ * cells. That goes up to 217 when a full redraw has run first in the same
+ * JVM, as Lanterna's refresh gets compiled differently. The bounds leave
+ * room for that, so they catch anything the animation itself starts
+ * allocating per entity, not small changes in Lanterna's share.
+ */
+public class MoveEntityAllocationTest
+{
+    private static final int ENTITIES = 500;
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int WARMUP_TICKS = 5000;
+    private static final int MEASURED_TICKS = 2000;
+    // the cycle itself may allocate a little, e.g. reading the clock, but
+    // nothing that grows with the number of entities
+    private static final double MAX_UPDATE_BYTES_PER_ENTITY_TICK = 0.5;
+    // Lanterna's refresh, measured above, and an eighth again for slack
+    private static final double MAX_FULL_REDRAW_BYTES_PER_ENTITY_TICK = 350;
+    private static final double MAX_INCREMENTAL_BYTES_PER_ENTITY_TICK = 245;
+
+    private interface Cycle
+    {
+        void run(Animation animation);
+    }
+
+    @Test
+    public void steadyStateUpdateDoesNotAllocatePerEntity() throws IOException
+    {
+        assertAllocatesAtMost(newAnimation(), Animation::update, MAX_UPDATE_BYTES_PER_ENTITY_TICK);
+    }
+
+    @Test
+    public void steadyStateFullRedrawOnlyAllocatesInRefresh() throws IOException
+    {
+        assertAllocatesAtMost(newAnimation(), Animation::animate, MAX_FULL_REDRAW_BYTES_PER_ENTITY_TICK);
+    }
+
+    @Test
+    public void steadyStateIncrementalOnlyAllocatesInRefresh() throws IOException
+    {
+        Animation animation = newAnimation();
+        animation.setIncremental(true);
+        assertAllocatesAtMost(animation, Animation::animate, MAX_INCREMENTAL_BYTES_PER_ENTITY_TICK);
+    }
+
+    @Test
+    public void steadyStateCellBufferingOnlyAllocatesInRefresh() throws IOException
+    {
+        Animation animation = newAnimation();
+        animation.setCellBuffering(true);
+        assertAllocatesAtMost(animation, Animation::animate, MAX_INCREMENTAL_BYTES_PER_ENTITY_TICK);
+    }
+
+    private static Animation newAnimation() throws IOException
+    {
+        Animation animation = Animation.headless(COLUMNS, ROWS);
+        for (int i = 0; i < ENTITIES; i++)
+        {
+            // fractional speeds and frame steps, so positions and frames keep
+            // changing, wrapping so they stay on the screen
+            animation.add_entity(Entity.newBuilder().withShape(new String[]{"><>", "<><"})
+                    .withPosition(i % COLUMNS, i % ROWS, i % 10)
+                    .withCallback_args(.5f, .25f, 0, .1f)
+                    .withWrap(true).build());
+        }
+        return animation;
+    }
+
+    private static void assertAllocatesAtMost(Animation animation, Cycle cycle, double maxPerEntityTick)
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("needs com.sun.management.ThreadMXBean", bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue("thread allocation measurement unsupported", threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < WARMUP_TICKS; i++)
+        {
+            cycle.run(animation);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MEASURED_TICKS; i++)
+        {
+            cycle.run(animation);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        double perEntityTick = (double) allocated / ENTITIES / MEASURED_TICKS;
+        assertTrue(allocated + " bytes allocated over " + MEASURED_TICKS + " ticks, " + perEntityTick
+                + " per entity per tick", perEntityTick <= maxPerEntityTick);
+    }
+}